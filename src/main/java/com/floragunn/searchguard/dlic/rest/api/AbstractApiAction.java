@@ -17,58 +17,59 @@ package com.floragunn.searchguard.dlic.rest.api;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Supplier;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.ActionListener;
-import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexResponse;
-import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.node.NodeClient;
 import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.bytes.BytesReference;
-import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.lucene.uid.Versions;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.settings.Settings.Builder;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.common.util.concurrent.ThreadContext.StoredContext;
 import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
-import org.elasticsearch.common.xcontent.XContentHelper;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.common.xcontent.json.JsonXContent;
 import org.elasticsearch.rest.BaseRestHandler;
 import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestRequest;
 import org.elasticsearch.rest.RestRequest.Method;
-import org.elasticsearch.rest.RestResponse;
 import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.threadpool.ThreadPool;
 
-import com.floragunn.searchguard.action.configupdate.ConfigUpdateAction;
-import com.floragunn.searchguard.action.configupdate.ConfigUpdateNodeResponse;
-import com.floragunn.searchguard.action.configupdate.ConfigUpdateRequest;
-import com.floragunn.searchguard.action.configupdate.ConfigUpdateResponse;
 import com.floragunn.searchguard.auditlog.AuditLog;
 import com.floragunn.searchguard.configuration.AdminDNs;
 import com.floragunn.searchguard.configuration.IndexBaseConfigurationRepository;
 import com.floragunn.searchguard.configuration.PrivilegesEvaluator;
+import com.floragunn.searchguard.dlic.rest.api.ConfigResponseCache.CachedResponse;
+import com.floragunn.searchguard.dlic.rest.api.ConfigWriteCoalescer.Mutation;
+import com.floragunn.searchguard.dlic.rest.api.ConfigWriteCoalescer.Outcome;
+import com.floragunn.searchguard.dlic.rest.api.ConfigWriteCoalescer.VersionedConfig;
+import com.floragunn.searchguard.dlic.rest.support.JsonPatch;
 import com.floragunn.searchguard.dlic.rest.support.Utils;
 import com.floragunn.searchguard.dlic.rest.validation.AbstractConfigurationValidator;
 import com.floragunn.searchguard.dlic.rest.validation.AbstractConfigurationValidator.ErrorType;
+import com.floragunn.searchguard.dlic.rest.validation.ValidationLimits;
 import com.floragunn.searchguard.ssl.transport.PrincipalExtractor;
 import com.floragunn.searchguard.support.ConfigConstants;
 import com.floragunn.searchguard.user.User;
@@ -81,9 +82,17 @@ public abstract class AbstractApiAction extends BaseRestHandler {
 	protected final ClusterService cs;
 	final ThreadPool threadPool;
 	private String searchguardIndex;
-	private final RestApiPrivilegesEvaluator restApiPrivilegesEvaluator;
+	protected final RestApiPrivilegesEvaluator restApiPrivilegesEvaluator;
 	protected final Boolean acceptInvalidLicense;
 	protected final AuditLog auditLog;
+	protected final RestApiThreadPool restApiThreadPool;
+	protected final ConfigWriteCoalescer configWriteCoalescer;
+	protected final ConfigResponseCache configResponseCache;
+	protected final ValidationLimits validationLimits;
+	private volatile ResourceIndex resourceIndex;
+
+	// transient holding the context of the caller while the request is handled in a stashed context
+	private static final String CALLER_CONTEXT_TRANSIENT = "_sg_restapi_caller_context";
 
 	static {
 		//printLicenseInfo();
@@ -92,7 +101,9 @@ public abstract class AbstractApiAction extends BaseRestHandler {
 	protected AbstractApiAction(final Settings settings, final Path configPath, final RestController controller,
 			final Client client, final AdminDNs adminDNs, final IndexBaseConfigurationRepository cl,
 			final ClusterService cs, final PrincipalExtractor principalExtractor, final PrivilegesEvaluator evaluator,
-			ThreadPool threadPool, AuditLog auditLog) {
+			ThreadPool threadPool, AuditLog auditLog, final RestApiThreadPool restApiThreadPool,
+			final ConfigWriteCoalescer configWriteCoalescer, final ConfigResponseCache configResponseCache,
+			final RestApiPrivilegesEvaluator restApiPrivilegesEvaluator) {
 		super(settings);
 		this.searchguardIndex = settings.get(ConfigConstants.SEARCHGUARD_CONFIG_INDEX_NAME,
 				ConfigConstants.SG_DEFAULT_CONFIG_INDEX);
@@ -101,9 +112,20 @@ public abstract class AbstractApiAction extends BaseRestHandler {
 		this.cl = cl;
 		this.cs = cs;
 		this.threadPool = threadPool;
-		this.restApiPrivilegesEvaluator = new RestApiPrivilegesEvaluator(settings, adminDNs, evaluator,
-				principalExtractor, configPath, threadPool);
+		this.restApiPrivilegesEvaluator = restApiPrivilegesEvaluator;
 		this.auditLog = auditLog;
+		this.restApiThreadPool = restApiThreadPool;
+		this.configWriteCoalescer = configWriteCoalescer;
+		this.configResponseCache = configResponseCache;
+		this.validationLimits = ValidationLimits.fromSettings(settings, getEndpoint().name(), defaultValidationLimits());
+	}
+
+	/**
+	 * @return the limits for request bodies of this endpoint, unless
+	 *         configured otherwise
+	 */
+	protected ValidationLimits defaultValidationLimits() {
+		return ValidationLimits.DEFAULT;
 	}
 
 	protected abstract AbstractConfigurationValidator getValidator(final Method method, BytesReference ref);
@@ -112,126 +134,507 @@ public abstract class AbstractApiAction extends BaseRestHandler {
 
 	protected abstract String getConfigName();
 
-	protected Tuple<String[], RestResponse> handleApiRequest(final RestRequest request, final Client client)
+	protected void handleApiRequest(final RestChannel channel, final RestRequest request, final Client client)
 			throws Throwable {
 
+		// the body of a PATCH is not a resource, it is validated after it has been applied
+		if (request.method() == Method.PATCH) {
+			handlePatch(channel, request, client);
+			return;
+		}
+
 		// validate additional settings, if any
 		AbstractConfigurationValidator validator = getValidator(request.method(), request.content());
-		if (!validator.validateSettings()) {
-			request.params().clear();
-			return new Tuple<String[], RestResponse>(new String[0],
-					new BytesRestResponse(RestStatus.BAD_REQUEST, validator.errorsAsXContent()));
+		if (!validator.validateSettings(validationLimits)) {
+			channel.sendResponse(new BytesRestResponse(errorStatus(validator), validator.errorsAsXContent()));
+			return;
 		}
 		switch (request.method()) {
 		case DELETE:
-			return handleDelete(request, client, validator.settingsBuilder());
+			handleDelete(channel, request, client, validator.settingsBuilder());
+			break;
 		case POST:
-			return handlePost(request, client, validator.settingsBuilder());
+			handlePost(channel, request, client, validator.settingsBuilder());
+			break;
 		case PUT:
-			return handlePut(request, client, validator.settingsBuilder());
+			handlePut(channel, request, client, validator.settingsBuilder());
+			break;
 		case GET:
-			return handleGet(request, client, validator.settingsBuilder());
+			handleGet(channel, request, client, validator.settingsBuilder());
+			break;
 		default:
 			throw new IllegalArgumentException(request.method() + " not supported");
 		}
 	}
 
-	protected Tuple<String[], RestResponse> handleDelete(final RestRequest request, final Client client,
+	protected void handleDelete(final RestChannel channel, final RestRequest request, final Client client,
 			final Settings.Builder additionalSettingsBuilder) throws Throwable {
 		final String name = request.param("name");
 
 		if (name == null || name.length() == 0) {
-			return badRequestResponse("No " + getResourceName() + " specified");
+			badRequestResponse(channel, "No " + getResourceName() + " specified");
+			return;
 		}
 
-		final Settings existingAsSettings = loadAsSettings(getConfigName());
-		
-		// check if resource is read only
-		Boolean readOnly = existingAsSettings.getAsBoolean(name+ "." + ConfigConstants.CONFIGKEY_READONLY, Boolean.FALSE);
-		if (readOnly) {
-			return forbidden("Resource '"+ name +"' is read-only.");
-		}
-		
-		final Map<String, Object> config = Utils.convertJsonToxToStructuredMap(Settings.builder().put(existingAsSettings).build()); 
+		submitMutation(channel, request, client, getConfigName(), deleteMutation(name));
+	}
 
-		boolean resourceExisted = config.containsKey(name);
-		config.remove(name);
-		if (resourceExisted) {
-			save(client, request, getConfigName(), Utils.convertStructuredMapToBytes(config));
-			return successResponse("'" + name + "' deleted.", getConfigName());
-		} else {
-			return notFound(getResourceName() + " " + name + " not found.");
-		}
+	/**
+	 * @return the change which removes the resource with the given name
+	 */
+	protected Mutation deleteMutation(final String name) {
+		return config -> {
+
+			if (!config.containsKey(name)) {
+				return Outcome.unchanged(RestStatus.NOT_FOUND, getResourceName() + " " + name + " not found.");
+			}
+
+			// check if resource is read only
+			if (isReadOnly(config, name)) {
+				return Outcome.unchanged(RestStatus.FORBIDDEN, "Resource '" + name + "' is read-only.");
+			}
+
+			config.remove(name);
+			return Outcome.modified(RestStatus.OK, "'" + name + "' deleted.");
+		};
 	}
 
-	protected Tuple<String[], RestResponse> handlePut(final RestRequest request, final Client client,
+	protected void handlePut(final RestChannel channel, final RestRequest request, final Client client,
 			final Settings.Builder additionalSettingsBuilder) throws Throwable {
 		
 		final String name = request.param("name");
 
 		if (name == null || name.length() == 0) {
-			return badRequestResponse("No " + getResourceName() + " specified");
+			badRequestResponse(channel, "No " + getResourceName() + " specified");
+			return;
 		}
 
-		final Settings existingAsSettings = loadAsSettings(getConfigName());
-		
-		// check if resource is writeable
-		Boolean readOnly = existingAsSettings.getAsBoolean(name+ "." + ConfigConstants.CONFIGKEY_READONLY, Boolean.FALSE);
-		if (readOnly) {
-			return forbidden("Resource '"+ name +"' is read-only.");
-		}
-		
 		if (log.isTraceEnabled()) {
 			log.trace(additionalSettingsBuilder.build());
 		}
-		
-		final Map<String, Object> con = Utils.convertJsonToxToStructuredMap(existingAsSettings); 
-		
-		boolean existed = con.containsKey(name);
 
-		con.put(name, Utils.convertJsonToxToStructuredMap(additionalSettingsBuilder.build()));
-		
-		save(client, request, getConfigName(), Utils.convertStructuredMapToBytes(con));
-		if (existed) {
-			return successResponse("'" + name + "' updated.", getConfigName());
+		submitMutation(channel, request, client, getConfigName(), putMutation(name, additionalSettingsBuilder));
+	}
+
+	/**
+	 * @return the change which creates or replaces the resource with the given
+	 *         name with the validated content of the request
+	 */
+	protected Mutation putMutation(final String name, final Settings.Builder additionalSettingsBuilder) {
+
+		final Map<String, Object> resource = Utils.convertJsonToxToStructuredMap(additionalSettingsBuilder.build());
+
+		return config -> {
+
+			// check if resource is writeable
+			if (isReadOnly(config, name)) {
+				return Outcome.unchanged(RestStatus.FORBIDDEN, "Resource '" + name + "' is read-only.");
+			}
+
+			final boolean existed = config.containsKey(name);
+			config.put(name, resource);
+
+			if (existed) {
+				return Outcome.modified(RestStatus.OK, "'" + name + "' updated.");
+			} else {
+				return Outcome.modified(RestStatus.CREATED, "'" + name + "' created.");
+			}
+		};
+	}
+
+	/**
+	 * Prepares resources before their mutations are built, for work which must
+	 * not be done inside a mutation, like hashing a password
+	 */
+	protected interface ResourcePreparer {
+
+		/**
+		 * @return true if {@link AbstractApiAction#putMutation(String, Settings.Builder)}
+		 *         only accepts the resource after it has been prepared
+		 */
+		boolean needsPreparation(Settings.Builder resource);
+
+		/**
+		 * Prepare the resources in place. The listener may be called on another
+		 * thread and receives one failure per resource, <code>null</code> if it was
+		 * prepared.
+		 */
+		void prepare(List<Settings.Builder> resources, ActionListener<Exception[]> listener);
+	}
+
+	/**
+	 * @return the preparer for resources of this endpoint, <code>null</code> if
+	 *         they are used as they are
+	 */
+	protected ResourcePreparer resourcePreparer() {
+		return null;
+	}
+
+	/**
+	 * Apply a JSON Patch or JSON Merge Patch to a single resource, or to the whole
+	 * configuration if no name is given. All resources changed by the patch are
+	 * validated like a PUT and the patch is only written if all of them are valid.
+	 */
+	protected void handlePatch(final RestChannel channel, final RestRequest request, final Client client)
+			throws Throwable {
+
+		final String name = request.param("name");
+		final boolean single = name != null && name.length() > 0;
+
+		// a patch writes like a PUT, endpoints may have been disabled for PUT before PATCH existed
+		final String authError = checkCallerPermissions(request, getEndpoint(), Method.PUT);
+		if (authError != null) {
+			forbidden(channel, "No permission to access REST API: " + authError);
+			return;
+		}
+
+		// removing resources from the collection also requires DELETE, it is only
+		// audited if the patch actually removes a resource
+		final String deleteAuthError;
+		if (single) {
+			deleteAuthError = null;
 		} else {
-			return createdResponse("'" + name + "' created.", getConfigName());
+			try (StoredContext ignored = restoreCallerContext()) {
+				deleteAuthError = restApiPrivilegesEvaluator.checkAccessPermissions(request, getEndpoint(), Method.DELETE);
+			}
+		}
+
+		if (!request.hasContent()) {
+			badRequestResponse(channel, ErrorType.PAYLOAD_MANDATORY.getMessage());
+			return;
 		}
+
+		final JsonPatch patch;
+		try {
+			patch = JsonPatch.parse(request.content());
+		} catch (final IllegalArgumentException | IOException e) {
+			badRequestResponse(channel, e.getMessage());
+			return;
+		}
+
+		final ResourcePreparer preparer = resourcePreparer();
+
+		if (preparer == null && deleteAuthError == null) {
+			submitMutation(channel, request, client, getConfigName(),
+					patchMutation(patch, name, null, null, Collections.emptyMap(), Collections.emptyMap()));
+			return;
+		}
+
+		// resources are prepared and removals are checked outside of the mutation, which holds
+		// the write queue of this config type and may be applied more than once
+		configWriteCoalescer.load(getConfigName(), new ActionListener<VersionedConfig>() {
+
+			@Override
+			public void onResponse(final VersionedConfig versionedConfig) {
+				try {
+					restApiThreadPool.execute(() -> {
+						try {
+							preparePatch(channel, request, client, patch, name, versionedConfig.getConfig(), preparer, deleteAuthError);
+						} catch (final Exception e) {
+							log.error("Cannot prepare patch due to", e);
+							exceptionResponse(channel, e);
+						}
+					});
+				} catch (final EsRejectedExecutionException e) {
+					exceptionResponse(channel, e);
+				}
+			}
+
+			@Override
+			public void onFailure(final Exception e) {
+				log.error("Cannot load {} due to", getConfigName(), e);
+				exceptionResponse(channel, e);
+			}
+		});
 	}
 
-	protected Tuple<String[], RestResponse> handlePost(final RestRequest request, final Client client,
+	/**
+	 * Apply the patch to the current configuration, reject it if it removes
+	 * resources without permission and prepare the changed resources which need
+	 * it. The mutation uses them if the patch yields the same resources when it
+	 * is applied.
+	 */
+	private void preparePatch(final RestChannel channel, final RestRequest request, final Client client, final JsonPatch patch,
+			final String name, final Map<String, Object> config, final ResourcePreparer preparer, final String deleteAuthError) {
+
+		final boolean single = name != null && name.length() > 0;
+		final Map<String, Object> dryRun = new HashMap<>();
+		final List<String> names = new ArrayList<>();
+		final List<Settings.Builder> resources = new ArrayList<>();
+
+		try {
+			final Object patched = single && !config.containsKey(name) ? null : patch.apply(single ? config.get(name) : config);
+			if (patched instanceof Map) {
+				@SuppressWarnings("unchecked")
+				final Map<String, Object> patchedConfig = single ? Collections.singletonMap(name, patched) : (Map<String, Object>) patched;
+				if (deleteAuthError != null && !single && !patchedConfig.keySet().containsAll(config.keySet())) {
+					logMissingPrivileges(request, deleteAuthError);
+					forbidden(channel, "No permission to access REST API: " + deleteAuthError);
+					return;
+				}
+				if (preparer != null) {
+					for (final Entry<String, Object> resource : patchedConfig.entrySet()) {
+						if (!(resource.getValue() instanceof Map) || Objects.equals(resource.getValue(), config.get(resource.getKey()))) {
+							continue;
+						}
+						@SuppressWarnings("unchecked")
+						final BytesReference source = Utils.convertStructuredMapToBytes((Map<String, Object>) resource.getValue());
+						final AbstractConfigurationValidator validator = getValidator(Method.PUT, source);
+						if (validator.validateSettings(validationLimits) && preparer.needsPreparation(validator.settingsBuilder())) {
+							dryRun.put(resource.getKey(), resource.getValue());
+							names.add(resource.getKey());
+							resources.add(validator.settingsBuilder());
+						}
+					}
+				}
+			}
+		} catch (final IllegalArgumentException e) {
+			// reported by the mutation
+		}
+
+		if (resources.isEmpty()) {
+			submitMutation(channel, request, client, getConfigName(),
+					patchMutation(patch, name, preparer, deleteAuthError, dryRun, Collections.emptyMap()));
+			return;
+		}
+
+		preparer.prepare(resources, new ActionListener<Exception[]>() {
+
+			@Override
+			public void onResponse(final Exception[] failures) {
+				final Map<String, Settings.Builder> prepared = new HashMap<>();
+				for (int i = 0; i < failures.length; i++) {
+					if (failures[i] != null) {
+						log.error("Cannot prepare {} {} due to", getResourceName(), names.get(i), failures[i]);
+						exceptionResponse(channel, failures[i]);
+						return;
+					}
+					prepared.put(names.get(i), resources.get(i));
+				}
+				submitMutation(channel, request, client, getConfigName(), patchMutation(patch, name, preparer, deleteAuthError, dryRun, prepared));
+			}
+
+			@Override
+			public void onFailure(final Exception e) {
+				exceptionResponse(channel, e);
+			}
+		});
+	}
+
+	/**
+	 * @param preparer
+	 *            the preparer of this action, <code>null</code> if there is none
+	 * @param deleteAuthError
+	 *            why the caller may not remove resources, <code>null</code> if
+	 *            it may
+	 * @param dryRun
+	 *            the patched resources the prepared ones are based on
+	 * @param prepared
+	 *            resources prepared before the mutation, by name
+	 */
+	private Mutation patchMutation(final JsonPatch patch, final String name, final ResourcePreparer preparer,
+			final String deleteAuthError, final Map<String, Object> dryRun, final Map<String, Settings.Builder> prepared) {
+
+		final boolean single = name != null && name.length() > 0;
+
+		return config -> {
+
+			if (single && !config.containsKey(name)) {
+				return Outcome.unchanged(RestStatus.NOT_FOUND, getResourceName() + " " + name + " not found.");
+			}
+
+			final Object patched;
+			try {
+				patched = patch.apply(single ? config.get(name) : config);
+			} catch (final IllegalArgumentException e) {
+				return Outcome.unchanged(RestStatus.UNPROCESSABLE_ENTITY, e.getMessage());
+			}
+
+			if (!(patched instanceof Map)) {
+				return Outcome.unchanged(RestStatus.UNPROCESSABLE_ENTITY, "Patch result must be an object");
+			}
+
+			@SuppressWarnings("unchecked")
+			final Map<String, Object> patchedConfig = single ? Collections.singletonMap(name, patched) : (Map<String, Object>) patched;
+
+			// apply the changes to a copy first, so the patch is written completely or not at all
+			final Map<String, Object> result = new HashMap<>(config);
+			final Set<String> changed = new HashSet<>();
+
+			if (!single) {
+				for (final String removed : config.keySet()) {
+					if (!patchedConfig.containsKey(removed)) {
+						if (deleteAuthError != null) {
+							// the resource was added after the dry run
+							return Outcome.unchanged(RestStatus.FORBIDDEN, "No permission to access REST API: " + deleteAuthError);
+						}
+						final Outcome outcome = deleteMutation(removed).apply(result);
+						if (!outcome.isModified()) {
+							return outcome;
+						}
+						changed.add(removed);
+					}
+				}
+			}
+
+			for (final Entry<String, Object> resource : patchedConfig.entrySet()) {
+				if (Objects.equals(resource.getValue(), config.get(resource.getKey()))) {
+					continue;
+				}
+
+				if (!(resource.getValue() instanceof Map)) {
+					return Outcome.unchanged(RestStatus.UNPROCESSABLE_ENTITY, getResourceName() + " " + resource.getKey() + " must be an object");
+				}
+
+				if (isReadOnly(config, resource.getKey())) {
+					return Outcome.unchanged(RestStatus.FORBIDDEN, "Resource '" + resource.getKey() + "' is read-only.");
+				}
+
+				@SuppressWarnings("unchecked")
+				final BytesReference source = Utils.convertStructuredMapToBytes((Map<String, Object>) resource.getValue());
+				final AbstractConfigurationValidator validator = getValidator(Method.PUT, source);
+				if (!validator.validateSettings(validationLimits)) {
+					return Outcome.unchanged(errorStatus(validator),
+							"Invalid " + getResourceName() + " " + resource.getKey() + ": " + validator.errorsAsXContent().bytes().utf8ToString());
+				}
+
+				Settings.Builder resourceSettings = validator.settingsBuilder();
+				if (preparer != null && preparer.needsPreparation(resourceSettings)) {
+					// prepared before the mutation, only valid as long as the patch still yields the same resource
+					if (!prepared.containsKey(resource.getKey()) || !Objects.equals(dryRun.get(resource.getKey()), resource.getValue())) {
+						return Outcome.unchanged(RestStatus.CONFLICT, getResourceName() + " " + resource.getKey() + " was modified concurrently, please retry.");
+					}
+					resourceSettings = prepared.get(resource.getKey());
+				}
+
+				final Outcome outcome = putMutation(resource.getKey(), resourceSettings).apply(result);
+				if (!outcome.isModified()) {
+					return outcome;
+				}
+				changed.add(resource.getKey());
+			}
+
+			if (changed.isEmpty()) {
+				return Outcome.unchanged(RestStatus.OK, "No changes.");
+			}
+
+			for (final String key : changed) {
+				if (result.containsKey(key)) {
+					config.put(key, result.get(key));
+				} else {
+					config.remove(key);
+				}
+			}
+
+			return Outcome.modified(RestStatus.OK, single ? "'" + name + "' updated." : "Resources " + changed + " updated.");
+		};
+	}
+
+	protected void handlePost(final RestChannel channel, final RestRequest request, final Client client,
 			final Settings.Builder additionalSettings) throws Throwable {
-		return notImplemented(Method.POST);
+		notImplemented(channel, Method.POST);
 	}
 
-	protected Tuple<String[], RestResponse> handleGet(RestRequest request, Client client, Builder additionalSettings)
+	protected void handleGet(final RestChannel channel, RestRequest request, Client client, Builder additionalSettings)
 			throws Throwable {
 
 		final String resourcename = request.param("name");
 
-		final Settings configurationSettings = loadAsSettings(getConfigName());
-
-		// no specific resource requested, return complete config
+		// no specific resource requested, return complete config or the requested page
 		if (resourcename == null || resourcename.length() == 0) {
-			return new Tuple<String[], RestResponse>(new String[0],
-					new BytesRestResponse(RestStatus.OK, convertToJson(configurationSettings)));
+			if (request.hasParam("from") || request.hasParam("size") || request.hasParam("sort") || request.hasParam("filter")) {
+				sendResources(channel, request);
+			} else {
+				sendConfiguration(channel, request, getConfigName());
+			}
+			return;
 		}
 
-		final Map<String, Object> con = 
-		        new HashMap<>(Utils.convertJsonToxToStructuredMap(Settings.builder().put(configurationSettings).build()))
-		        .entrySet()
-		        .stream()
-		        .filter(f->f.getKey() != null && f.getKey().equals(resourcename)) //copy keys
-		        .collect(Collectors.toMap(p -> p.getKey(), p -> p.getValue()));
+		final BytesReference resource = resourceIndex().get(resourcename);
 
-		if (!con.containsKey(resourcename)) {
-			return notFound("Resource '" + resourcename + "' not found.");
+		if (resource == null) {
+			notFound(channel, "Resource '" + resourcename + "' not found.");
+			return;
 		}
-		return new Tuple<String[], RestResponse>(new String[0],
-				new BytesRestResponse(RestStatus.OK, XContentHelper.convertToJson(Utils.convertStructuredMapToBytes(con), false, false, XContentType.JSON)));
+		channel.sendResponse(new BytesRestResponse(RestStatus.OK, XContentType.JSON.mediaType(), resource));
 	}
 
 
+	/**
+	 * Send the resources matching the <code>filter</code> parameter, sorted by
+	 * name and sliced by <code>from</code> and <code>size</code>. Only the
+	 * requested resources are serialized. The number of all matching resources
+	 * is returned in the <code>X-Total-Count</code> header.
+	 */
+	protected void sendResources(final RestChannel channel, final RestRequest request) throws IOException {
+
+		final int from;
+		final int size;
+		try {
+			from = request.paramAsInt("from", 0);
+			size = request.paramAsInt("size", Integer.MAX_VALUE);
+		} catch (final IllegalArgumentException e) {
+			badRequestResponse(channel, e.getMessage());
+			return;
+		}
+
+		final String sort = request.param("sort", "asc");
+
+		if (from < 0 || size < 0) {
+			badRequestResponse(channel, "Parameters 'from' and 'size' must not be negative");
+			return;
+		}
+
+		if (!sort.equals("asc") && !sort.equals("desc")) {
+			badRequestResponse(channel, "Parameter 'sort' must be one of asc, desc");
+			return;
+		}
+
+		final ResourceIndex index = resourceIndex();
+		final List<String> names = index.names(request.param("filter"));
+		final int total = names.size();
+		final int to = (int) Math.min(total, (long) from + size);
+
+		final XContentBuilder builder = XContentFactory.jsonBuilder();
+		builder.prettyPrint();
+		builder.startObject();
+		for (int i = from; i < to; i++) {
+			final String name = sort.equals("asc") ? names.get(i) : names.get(total - 1 - i);
+			builder.field(name, index.resource(name));
+		}
+		builder.endObject();
+
+		final BytesRestResponse response = new BytesRestResponse(RestStatus.OK, builder);
+		response.addHeader("X-Total-Count", String.valueOf(total));
+		channel.sendResponse(response);
+	}
+
+	/**
+	 * @return the resource index of the current configuration version, rebuilt
+	 *         only once the configuration has been reloaded
+	 */
+	private ResourceIndex resourceIndex() {
+		final ResourceIndex index = ResourceIndex.forSettings(resourceIndex, loadAsSettings(getConfigName()));
+		resourceIndex = index;
+		return index;
+	}
+
+	/**
+	 * Send the complete configuration of the given type from the
+	 * {@link ConfigResponseCache}, or 304 if the client's
+	 * <code>If-None-Match</code> header matches its ETag
+	 */
+	protected void sendConfiguration(final RestChannel channel, final RestRequest request, final String config) throws IOException {
+
+		final CachedResponse cached = configResponseCache.get(config);
+
+		final BytesRestResponse response = cached.matches(request.header("If-None-Match"))
+				? new BytesRestResponse(RestStatus.NOT_MODIFIED, XContentType.JSON.mediaType(), BytesArray.EMPTY)
+				: new BytesRestResponse(RestStatus.OK, XContentType.JSON.mediaType(), cached.getContent());
+		response.addHeader("ETag", cached.getEtag());
+		channel.sendResponse(response);
+	}
+
 	protected final Settings.Builder load(final String config) {
 		return Settings.builder().put(loadAsSettings(config));
 	}
@@ -247,54 +650,95 @@ public abstract class AbstractApiAction extends BaseRestHandler {
 		return true;
 	}
 	
-	protected void save(final Client client, final RestRequest request, final String config,
-            final Settings.Builder settings) throws Throwable {
-	    save(client, request, config, toSource(settings));
+	protected void saveAndUpdateConfiguration(final Client client, final RestRequest request, final String config,
+            final Settings.Builder settings, final ActionListener<IndexResponse> actionListener) throws IOException {
+	    saveAndUpdateConfiguration(client, request, config, toSource(settings), actionListener);
 	}
 
-	protected void save(final Client client, final RestRequest request, final String config,
-			final BytesReference bytesRef) throws Throwable {
-		final Semaphore sem = new Semaphore(0);
-		final List<Throwable> exception = new ArrayList<Throwable>(1);
-		final IndexRequest ir = new IndexRequest(this.searchguardIndex);
+	/**
+	 * Indexes the given configuration document and, once the write is acknowledged, reloads the
+	 * configuration on all nodes. The listener is notified after the reload has finished, the
+	 * calling thread never waits for either step.
+	 */
+	protected void saveAndUpdateConfiguration(final Client client, final RestRequest request, final String config,
+			final BytesReference bytesRef, final ActionListener<IndexResponse> actionListener) {
+		configWriteCoalescer.write(config, bytesRef, Versions.MATCH_ANY, actionListener);
+	}
 
-		String type = "sg";
-		String id = config;
+	/**
+	 * Hand the mutation to the {@link ConfigWriteCoalescer} and answer the request
+	 * with its outcome once it has been written and reloaded. A version given in
+	 * the <code>If-Match</code> header makes the mutation conditional. The reload
+	 * state of every node is part of the response.
+	 */
+	protected void submitMutation(final RestChannel channel, final RestRequest request, final Client client,
+			final String config, final Mutation mutation) {
 
-		if (cs.state().metaData().index(this.searchguardIndex).mapping("config") != null) {
-			type = config;
-			id = "0";
+		final long expectedVersion;
+		try {
+			expectedVersion = parseIfMatch(request.header("If-Match"));
+		} catch (final NumberFormatException e) {
+			badRequestResponse(channel, "Invalid If-Match header, expected a document version");
+			return;
 		}
 
-		client.index(ir.type(type).id(id).setRefreshPolicy(RefreshPolicy.IMMEDIATE).source(config, bytesRef),
-				new ActionListener<IndexResponse>() {
-
-					@Override
-					public void onResponse(final IndexResponse response) {
-						sem.release();
-						if (logger.isDebugEnabled()) {
-							logger.debug("{} successfully updated", config);
-						}
+		configWriteCoalescer.submit(config, expectedVersion, mutation, new OnSucessActionListener<Outcome>(channel) {
+
+			@Override
+			public void onResponse(Outcome outcome) {
+				try {
+					final XContentBuilder builder = XContentFactory.jsonBuilder();
+					builder.startObject();
+					builder.field("status", outcome.getStatus().name());
+					builder.field("message", outcome.getMessage());
+					if (outcome.getStatus() == RestStatus.CONFLICT) {
+						builder.field("current_version", outcome.getVersion());
 					}
-
-					@Override
-					public void onFailure(final Exception e) {
-						sem.release();
-						exception.add(e);
-						logger.error("Cannot update {} due to", config, e);
+					if (outcome.getPropagation() != null) {
+						builder.field("propagation", outcome.getPropagation());
 					}
-				});
+					builder.endObject();
+					final BytesRestResponse response = new BytesRestResponse(outcome.getStatus(), builder);
+					if (outcome.getVersion() >= 0) {
+						response.addHeader("ETag", "\"" + outcome.getVersion() + "\"");
+					}
+					channel.sendResponse(response);
+				} catch (IOException ex) {
+					logger.error("Cannot build response", ex);
+					channel.sendResponse(new BytesRestResponse(RestStatus.INTERNAL_SERVER_ERROR, ex.toString()));
+				}
+			}
+		});
+	}
 
-		if (!sem.tryAcquire(2, TimeUnit.MINUTES)) {
-			// timeout
-			logger.error("Cannot update {} due to timeout}", config);
-			throw new ElasticsearchException("Timeout updating " + config);
+	/**
+	 * @return the version of an <code>If-Match</code> header like <code>"5"</code>,
+	 *         {@link Versions#MATCH_ANY} if no header or <code>*</code> was given
+	 */
+	protected static long parseIfMatch(final String ifMatch) {
+		if (ifMatch == null || ifMatch.trim().isEmpty() || ifMatch.trim().equals("*")) {
+			return Versions.MATCH_ANY;
 		}
-
-		if (exception.size() > 0) {
-			throw exception.get(0);
+		String version = ifMatch.trim();
+		if (version.startsWith("W/")) {
+			version = version.substring(2);
 		}
+		if (version.length() > 1 && version.startsWith("\"") && version.endsWith("\"")) {
+			version = version.substring(1, version.length() - 1);
+		}
+		final long parsed = Long.parseLong(version);
+		if (parsed < 0) {
+			throw new NumberFormatException("Negative version " + parsed);
+		}
+		return parsed;
+	}
 
+	protected static boolean isReadOnly(final Map<String, Object> config, final String name) {
+		final Object resource = config.get(name);
+		if (!(resource instanceof Map)) {
+			return false;
+		}
+		return Boolean.parseBoolean(String.valueOf(((Map<?, ?>) resource).get(ConfigConstants.CONFIGKEY_READONLY)));
 	}
 
 	@Override
@@ -320,79 +764,82 @@ public abstract class AbstractApiAction extends BaseRestHandler {
 			auditLog.logMissingPrivileges(authError, user==null?null:user.getName(), request);
 			// for rest request
 			request.params().clear();
-			final BytesRestResponse response = (BytesRestResponse)forbidden("No permission to access REST API: " + authError).v2();
-			return channel -> channel.sendResponse(response);
+			return channel -> forbidden(channel, "No permission to access REST API: " + authError);
 		}
 
-		final Semaphore sem = new Semaphore(0);
-		final List<Throwable> exception = new ArrayList<Throwable>(1);
-		final Tuple<String[], RestResponse> response;
-
-		try (StoredContext ctx = threadPool.getThreadContext().stashContext()) {
-
-			threadPool.getThreadContext().putHeader(ConfigConstants.SG_CONF_REQUEST_HEADER, "true");
-
-			response = handleApiRequest(request, client);
-
-			// reload config
-			if (response.v1().length > 0) {
+		// reject oversized bodies before any work is queued for them
+		if (request.hasContent() && request.content().length() > validationLimits.getMaxBodySize()) {
+			final long maxBodySize = validationLimits.getMaxBodySize();
+			return channel -> response(channel, RestStatus.REQUEST_ENTITY_TOO_LARGE, RestStatus.REQUEST_ENTITY_TOO_LARGE.name(),
+					ErrorType.BODY_TOO_LARGE.getMessage() + " Maximum is " + maxBodySize + " bytes.");
+		}
 
-				final ConfigUpdateRequest cur = new ConfigUpdateRequest(response.v1());
-				// cur.putInContext(ConfigConstants.SG_USER,
-				// new User((String)
-				// request.getFromContext(ConfigConstants.SG_SSL_PRINCIPAL)));
+		return channel -> {
+			try {
+				final Supplier<StoredContext> callerContext = threadPool.getThreadContext().newRestorableContext(false);
+				// do the actual work on our own bounded pool, never on the HTTP worker thread
+				restApiThreadPool.execute(() -> {
+					try (StoredContext ctx = threadPool.getThreadContext().stashContext()) {
 
-				client.execute(ConfigUpdateAction.INSTANCE, cur, new ActionListener<ConfigUpdateResponse>() {
+						threadPool.getThreadContext().putHeader(ConfigConstants.SG_CONF_REQUEST_HEADER, "true");
+						threadPool.getThreadContext().putTransient(CALLER_CONTEXT_TRANSIENT, callerContext);
 
-					@Override
-					public void onFailure(final Exception e) {
-						sem.release();
-						logger.error("Cannot update {} due to", Arrays.toString(response.v1()), e);
-						exception.add(e);
-					}
+						handleApiRequest(channel, request, client);
 
-					@Override
-					public void onResponse(final ConfigUpdateResponse ur) {
-						sem.release();
-						if (!checkConfigUpdateResponse(ur)) {
-							logger.error("Cannot update {}", Arrays.toString(response.v1()));
-							exception.add(
-									new ElasticsearchException("Unable to update " + Arrays.toString(response.v1())));
-						} else if (logger.isDebugEnabled()) {
-							logger.debug("Configs {} successfully updated", Arrays.toString(response.v1()));
-						}
+					} catch (final Throwable e) {
+						logger.error("Unexpected exception {}", e.toString(), e);
+						channel.sendResponse(new BytesRestResponse(RestStatus.INTERNAL_SERVER_ERROR, e.toString()));
 					}
 				});
-
-			} else {
-				sem.release();
+			} catch (final EsRejectedExecutionException e) {
+				logger.warn("Rejected {} {} due to {}", request.method(), request.path(), e.getMessage());
+				channel.sendResponse(new BytesRestResponse(channel, e));
 			}
+		};
+	}
 
-		} catch (final Throwable e) {
-			logger.error("Unexpected exception {}", e.toString(), e);
-			request.params().clear();
-			return channel -> channel
-					.sendResponse(new BytesRestResponse(RestStatus.INTERNAL_SERVER_ERROR, e.toString()));
+	/**
+	 * Check the permissions of the caller for a method other than the one of the
+	 * request, e.g. for requests which write like a PUT or DELETE. Missing
+	 * permissions are audit logged like those of the request itself.
+	 *
+	 * @return why access is denied, <code>null</code> if it is granted
+	 */
+	protected String checkCallerPermissions(final RestRequest request, final Endpoint endpoint, final Method method) throws IOException {
+		final String authError;
+		try (StoredContext ignored = restoreCallerContext()) {
+			authError = restApiPrivilegesEvaluator.checkAccessPermissions(request, endpoint, method);
 		}
-
-		try {
-			if (!sem.tryAcquire(2, TimeUnit.MINUTES)) {
-				// timeout
-				logger.error("Cannot update {} due to timeout", Arrays.toString(response.v1()));
-				throw new ElasticsearchException("Timeout updating " + Arrays.toString(response.v1()));
-			}
-		} catch (final InterruptedException e) {
-			Thread.currentThread().interrupt();
+		if (authError != null) {
+			logMissingPrivileges(request, authError);
 		}
+		return authError;
+	}
 
-		if (exception.size() > 0) {
-			request.params().clear();
-			return channel -> channel
-					.sendResponse(new BytesRestResponse(RestStatus.INTERNAL_SERVER_ERROR, exception.get(0).toString()));
+	protected void logMissingPrivileges(final RestRequest request, final String authError) {
+		logger.error("No permission to access REST API: " + authError);
+		try (StoredContext ignored = restoreCallerContext()) {
+			final User user = (User) threadPool.getThreadContext().getTransient(ConfigConstants.SG_USER);
+			auditLog.logMissingPrivileges(authError, user == null ? null : user.getName(), request);
 		}
+	}
 
-		return channel -> channel.sendResponse(response.v2());
+	/**
+	 * Requests are handled in a stashed context. Restore the context of the
+	 * caller, e.g. to check further permissions of the user. The returned
+	 * context must be closed to switch back.
+	 */
+	protected StoredContext restoreCallerContext() {
+		final Supplier<StoredContext> callerContext = threadPool.getThreadContext().getTransient(CALLER_CONTEXT_TRANSIENT);
+		return callerContext.get();
+	}
 
+	/**
+	 * @return the status of a failed validation, bodies exceeding a limit are
+	 *         too large rather than bad
+	 */
+	protected static RestStatus errorStatus(final AbstractConfigurationValidator validator) {
+		return validator.getErrorType().isLimitExceeded() ? RestStatus.REQUEST_ENTITY_TOO_LARGE : RestStatus.BAD_REQUEST;
 	}
 
 	protected static BytesReference toSource(final Settings.Builder settingsBuilder) throws IOException {
@@ -403,44 +850,16 @@ public abstract class AbstractApiAction extends BaseRestHandler {
 		return builder.bytes();
 	}
 
-	protected boolean checkConfigUpdateResponse(final ConfigUpdateResponse response) {
-
-		final int nodeCount = cs.state().getNodes().getNodes().size();
-		final int expectedConfigCount = 1;
-
-		boolean success = response.getNodes().size() == nodeCount;
-		if (!success) {
-			logger.error(
-					"Expected " + nodeCount + " nodes to return response, but got only " + response.getNodes().size());
-		}
-
-		for (final String nodeId : response.getNodesMap().keySet()) {
-			final ConfigUpdateNodeResponse node = response.getNodesMap().get(nodeId);
-			final boolean successNode = node.getUpdatedConfigTypes() != null
-					&& node.getUpdatedConfigTypes().length == expectedConfigCount;
-
-			if (!successNode) {
-				logger.error("Expected " + expectedConfigCount + " config types for node " + nodeId + " but got only "
-						+ Arrays.toString(node.getUpdatedConfigTypes()));
-			}
-
-			success = success && successNode;
-		}
-
-		return success;
-	}
-
 	protected static XContentBuilder convertToJson(Settings settings) throws IOException {
 		XContentBuilder builder = XContentFactory.jsonBuilder();
 		builder.prettyPrint();
 		builder.startObject();
-		settings.toXContent(builder, ToXContent.EMPTY_PARAMS);
+		Utils.writeStructured(builder, settings);
 		builder.endObject();
 		return builder;
 	}
 
-	protected Tuple<String[], RestResponse> response(RestStatus status, String statusString, String message,
-			String... configs) {
+	protected void response(RestChannel channel, RestStatus status, String statusString, String message) {
 
 		try {
 			final XContentBuilder builder = XContentFactory.jsonBuilder();
@@ -448,47 +867,89 @@ public abstract class AbstractApiAction extends BaseRestHandler {
 			builder.field("status", statusString);
 			builder.field("message", message);
 			builder.endObject();
-			String[] configsToUpdate = configs == null ? new String[0] : configs;
-			return new Tuple<String[], RestResponse>(configsToUpdate, new BytesRestResponse(status, builder));
+			channel.sendResponse(new BytesRestResponse(status, builder));
 		} catch (IOException ex) {
 			logger.error("Cannot build response", ex);
-			return null;
+			channel.sendResponse(new BytesRestResponse(RestStatus.INTERNAL_SERVER_ERROR, ex.toString()));
 		}
 	}
 
-	protected Tuple<String[], RestResponse> successResponse(String message, String... configs) {
-		return response(RestStatus.OK, RestStatus.OK.name(), message, configs);
+	protected void successResponse(RestChannel channel, String message) {
+		response(channel, RestStatus.OK, RestStatus.OK.name(), message);
 	}
 
-	protected Tuple<String[], RestResponse> createdResponse(String message, String... configs) {
-		return response(RestStatus.CREATED, RestStatus.CREATED.name(), message, configs);
+	protected void createdResponse(RestChannel channel, String message) {
+		response(channel, RestStatus.CREATED, RestStatus.CREATED.name(), message);
 	}
 
-	protected Tuple<String[], RestResponse> badRequestResponse(String message) {
-		return response(RestStatus.BAD_REQUEST, RestStatus.BAD_REQUEST.name(), message);
+	protected void badRequestResponse(RestChannel channel, String message) {
+		response(channel, RestStatus.BAD_REQUEST, RestStatus.BAD_REQUEST.name(), message);
 	}
 
-	protected Tuple<String[], RestResponse> notFound(String message) {
-		return response(RestStatus.NOT_FOUND, RestStatus.NOT_FOUND.name(), message);
+	protected void notFound(RestChannel channel, String message) {
+		response(channel, RestStatus.NOT_FOUND, RestStatus.NOT_FOUND.name(), message);
 	}
 
-	protected Tuple<String[], RestResponse> forbidden(String message) {
-		return response(RestStatus.FORBIDDEN, RestStatus.FORBIDDEN.name(), message);
+	protected void forbidden(RestChannel channel, String message) {
+		response(channel, RestStatus.FORBIDDEN, RestStatus.FORBIDDEN.name(), message);
 	}
 
-	protected Tuple<String[], RestResponse> internalErrorResponse(String message) {
-		return response(RestStatus.INTERNAL_SERVER_ERROR, RestStatus.INTERNAL_SERVER_ERROR.name(), message);
+	protected void internalErrorResponse(RestChannel channel, String message) {
+		response(channel, RestStatus.INTERNAL_SERVER_ERROR, RestStatus.INTERNAL_SERVER_ERROR.name(), message);
+	}
+
+	/**
+	 * Respond with the status of the exception, e.g. 429 if the work was rejected
+	 */
+	protected void exceptionResponse(RestChannel channel, Exception e) {
+		try {
+			channel.sendResponse(new BytesRestResponse(channel, e));
+		} catch (final IOException ioe) {
+			log.error("Cannot send response", ioe);
+			internalErrorResponse(channel, "Error " + e.getMessage());
+		}
 	}
 
-	protected Tuple<String[], RestResponse> unprocessable(String message) {
-		return response(RestStatus.UNPROCESSABLE_ENTITY, RestStatus.UNPROCESSABLE_ENTITY.name(), message);
+	protected void unprocessable(RestChannel channel, String message) {
+		response(channel, RestStatus.UNPROCESSABLE_ENTITY, RestStatus.UNPROCESSABLE_ENTITY.name(), message);
 	}
 
-	protected Tuple<String[], RestResponse> notImplemented(Method method) {
-		return response(RestStatus.NOT_IMPLEMENTED, RestStatus.NOT_IMPLEMENTED.name(),
+	protected void notImplemented(RestChannel channel, Method method) {
+		response(channel, RestStatus.NOT_IMPLEMENTED, RestStatus.NOT_IMPLEMENTED.name(),
 				"Method " + method.name() + " not supported for this action.");
 	}
 
+	/**
+	 * Listener which answers the REST request with an internal server error
+	 * if the underlying action fails. Subclasses only need to deal with the
+	 * successful outcome.
+	 */
+	protected abstract class OnSucessActionListener<Response> implements ActionListener<Response> {
+
+		private final RestChannel channel;
+
+		public OnSucessActionListener(RestChannel channel) {
+			super();
+			this.channel = channel;
+		}
+
+		@Override
+		public final void onFailure(Exception e) {
+			if (e instanceof EsRejectedExecutionException) {
+				logger.warn("Rejected request due to {}", e.getMessage());
+				try {
+					channel.sendResponse(new BytesRestResponse(channel, e));
+					return;
+				} catch (final IOException ioe) {
+					logger.error("Cannot send rejection", ioe);
+				}
+			}
+			logger.error("Cannot process request due to", e);
+			internalErrorResponse(channel, "Error " + e.getMessage());
+		}
+
+	}
+
 	/**
 	 * Consume all defined parameters for the request. Before we handle the
 	 * request in subclasses where we actually need the parameter, some global
@@ -500,6 +961,10 @@ public abstract class AbstractApiAction extends BaseRestHandler {
 	 */
 	protected void consumeParameters(final RestRequest request) {
 		request.param("name");
+		request.param("from");
+		request.param("size");
+		request.param("sort");
+		request.param("filter");
 	}
 
 	private static void printLicenseInfo() {
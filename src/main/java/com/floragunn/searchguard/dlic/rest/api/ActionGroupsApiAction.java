@@ -40,8 +40,10 @@ public class ActionGroupsApiAction extends AbstractApiAction {
 	@Inject
 	public ActionGroupsApiAction(final Settings settings, final Path configPath, final RestController controller, final Client client,
 			final AdminDNs adminDNs, final IndexBaseConfigurationRepository cl, final ClusterService cs,
-            final PrincipalExtractor principalExtractor, final PrivilegesEvaluator evaluator, ThreadPool threadPool, AuditLog auditLog) {
-		super(settings, configPath, controller, client, adminDNs, cl, cs, principalExtractor, evaluator, threadPool, auditLog);
+            final PrincipalExtractor principalExtractor, final PrivilegesEvaluator evaluator, ThreadPool threadPool, AuditLog auditLog, final RestApiThreadPool restApiThreadPool,
+			final ConfigWriteCoalescer configWriteCoalescer, final ConfigResponseCache configResponseCache,
+			final RestApiPrivilegesEvaluator restApiPrivilegesEvaluator) {
+		super(settings, configPath, controller, client, adminDNs, cl, cs, principalExtractor, evaluator, threadPool, auditLog, restApiThreadPool, configWriteCoalescer, configResponseCache, restApiPrivilegesEvaluator);
 
 		// legacy mapping for backwards compatibility
 		// TODO: remove in SG7
@@ -55,6 +57,8 @@ public class ActionGroupsApiAction extends AbstractApiAction {
 		controller.registerHandler(Method.GET, "/_searchguard/api/actiongroups/", this);
 		controller.registerHandler(Method.DELETE, "/_searchguard/api/actiongroups/{name}", this);
 		controller.registerHandler(Method.PUT, "/_searchguard/api/actiongroups/{name}", this);
+		controller.registerHandler(Method.PATCH, "/_searchguard/api/actiongroups/", this);
+		controller.registerHandler(Method.PATCH, "/_searchguard/api/actiongroups/{name}", this);
 
 	}
 	
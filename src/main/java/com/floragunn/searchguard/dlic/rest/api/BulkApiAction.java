@@ -0,0 +1,470 @@
+/*
+ * Copyright 2018 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.dlic.rest.api;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import com.floragunn.searchguard.auditlog.AuditLog;
+import com.floragunn.searchguard.configuration.AdminDNs;
+import com.floragunn.searchguard.configuration.IndexBaseConfigurationRepository;
+import com.floragunn.searchguard.configuration.PrivilegesEvaluator;
+import com.floragunn.searchguard.dlic.rest.api.ConfigWriteCoalescer.Mutation;
+import com.floragunn.searchguard.dlic.rest.api.ConfigWriteCoalescer.Outcome;
+import com.floragunn.searchguard.dlic.rest.support.Utils;
+import com.floragunn.searchguard.dlic.rest.validation.AbstractConfigurationValidator;
+import com.floragunn.searchguard.dlic.rest.validation.NoOpValidator;
+import com.floragunn.searchguard.dlic.rest.validation.ValidationLimits;
+import com.floragunn.searchguard.ssl.transport.PrincipalExtractor;
+
+/**
+ * Creates, updates and deletes roles, role mappings, action groups and internal
+ * users in one request. The body is newline delimited JSON: an action line like
+ * <code>{"create":{"type":"roles","name":"sg_role"}}</code>, followed by the
+ * resource for <code>create</code> and <code>update</code>.
+ * <p>
+ * Every resource is validated like a single PUT. Each affected configuration
+ * document is written once and all of them are reloaded with a single config
+ * update. The response contains one result per operation.
+ */
+public class BulkApiAction extends AbstractApiAction {
+
+	private final static String CREATE = "create";
+	private final static String UPDATE = "update";
+	private final static String DELETE = "delete";
+
+	private final static ValidationLimits BULK_LIMITS = new ValidationLimits(new ByteSizeValue(10, ByteSizeUnit.MB).getBytes(),
+			ValidationLimits.DEFAULT.getMaxKeys(), ValidationLimits.DEFAULT.getMaxDepth());
+
+	// api actions by config name, provide validators and mutations per type
+	private final Map<String, AbstractApiAction> apiActions = new HashMap<>();
+
+	protected BulkApiAction(final Settings settings, final Path configPath, final RestController controller, final Client client,
+			final AdminDNs adminDNs, final IndexBaseConfigurationRepository cl, final ClusterService cs,
+			final PrincipalExtractor principalExtractor, final PrivilegesEvaluator evaluator, ThreadPool threadPool, AuditLog auditLog, final RestApiThreadPool restApiThreadPool,
+			final ConfigWriteCoalescer configWriteCoalescer, final ConfigResponseCache configResponseCache,
+			final RestApiPrivilegesEvaluator restApiPrivilegesEvaluator, final Collection<AbstractApiAction> apiActions) {
+		super(settings, configPath, controller, client, adminDNs, cl, cs, principalExtractor, evaluator, threadPool, auditLog, restApiThreadPool, configWriteCoalescer, configResponseCache, restApiPrivilegesEvaluator);
+		for (final AbstractApiAction apiAction : apiActions) {
+			this.apiActions.put(apiAction.getConfigName(), apiAction);
+		}
+		controller.registerHandler(Method.POST, "/_searchguard/api/_bulk", this);
+	}
+
+	@Override
+	protected Endpoint getEndpoint() {
+		return Endpoint.BULK;
+	}
+
+	@Override
+	protected ValidationLimits defaultValidationLimits() {
+		// many resources in one body, each of them is limited on its own
+		return BULK_LIMITS;
+	}
+
+	@Override
+	public boolean supportsContentStream() {
+		// accept application/x-ndjson
+		return true;
+	}
+
+	@Override
+	protected void handleApiRequest(final RestChannel channel, final RestRequest request, final Client client)
+			throws Throwable {
+		// the body is not a single JSON document, every operation is validated on its own
+		handlePost(channel, request, client, null);
+	}
+
+	@Override
+	protected void handlePost(final RestChannel channel, final RestRequest request, final Client client,
+			final Settings.Builder additionalSettings) throws Throwable {
+
+		if (!request.hasContent()) {
+			badRequestResponse(channel, "Request body required for this action.");
+			return;
+		}
+
+		final List<BulkItem> items;
+		try {
+			items = parse(request.content());
+		} catch (final Exception e) {
+			badRequestResponse(channel, e.getMessage());
+			return;
+		}
+
+		if (items.isEmpty()) {
+			badRequestResponse(channel, "No operations specified.");
+			return;
+		}
+
+		// permissions are evaluated for the caller, once per endpoint and method, and
+		// each denied one is audit logged like a single request
+		final Map<String, String> authErrors = new HashMap<>();
+		for (final BulkItem item : items) {
+			final AbstractApiAction apiAction = apiActions.get(item.type);
+			if (apiAction == null) {
+				continue;
+			}
+			final Method method = DELETE.equals(item.action) ? Method.DELETE : Method.PUT;
+			final String key = apiAction.getEndpoint() + ":" + method;
+			if (!authErrors.containsKey(key)) {
+				authErrors.put(key, checkCallerPermissions(request, apiAction.getEndpoint(), method));
+			}
+		}
+
+		for (final BulkItem item : items) {
+			final AbstractApiAction apiAction = apiActions.get(item.type);
+
+			if (apiAction == null) {
+				item.fail(RestStatus.BAD_REQUEST, "Unknown type '" + item.type + "'.");
+				continue;
+			}
+
+			if (item.name == null || item.name.length() == 0) {
+				item.fail(RestStatus.BAD_REQUEST, "No " + apiAction.getResourceName() + " specified");
+				continue;
+			}
+
+			final Method method = DELETE.equals(item.action) ? Method.DELETE : Method.PUT;
+			final String authError = authErrors.get(apiAction.getEndpoint() + ":" + method);
+			if (authError != null) {
+				item.fail(RestStatus.FORBIDDEN, "No permission to access REST API: " + authError);
+				continue;
+			}
+
+			if (!DELETE.equals(item.action)) {
+				final AbstractConfigurationValidator validator = apiAction.getValidator(Method.PUT, item.source);
+				// every resource is subject to the limits of its own endpoint
+				if (!validator.validateSettings(apiAction.validationLimits)) {
+					item.error = XContentHelper.convertToMap(validator.errorsAsXContent().bytes(), false, XContentType.JSON).v2();
+					item.fail(errorStatus(validator), String.valueOf(item.error.get("reason")));
+					continue;
+				}
+				item.settings = validator.settingsBuilder();
+			}
+		}
+
+		prepare(channel, items, new ArrayList<>(apiActions.values()), 0);
+	}
+
+	/**
+	 * Let the api action of each type prepare its resources before the mutations
+	 * are built, e.g. hash the passwords of users on the hashing pool
+	 */
+	private void prepare(final RestChannel channel, final List<BulkItem> items, final List<AbstractApiAction> actions, final int index) {
+
+		if (index == actions.size()) {
+			submit(channel, items);
+			return;
+		}
+
+		final AbstractApiAction apiAction = actions.get(index);
+		final ResourcePreparer preparer = apiAction.resourcePreparer();
+		if (preparer == null) {
+			prepare(channel, items, actions, index + 1);
+			return;
+		}
+
+		final List<BulkItem> puts = new ArrayList<>();
+		final List<Settings.Builder> resources = new ArrayList<>();
+		for (final BulkItem item : items) {
+			if (item.settings != null && item.status == null && apiActions.get(item.type) == apiAction
+					&& preparer.needsPreparation(item.settings)) {
+				puts.add(item);
+				resources.add(item.settings);
+			}
+		}
+
+		if (puts.isEmpty()) {
+			prepare(channel, items, actions, index + 1);
+			return;
+		}
+
+		preparer.prepare(resources, new ActionListener<Exception[]>() {
+
+			@Override
+			public void onResponse(final Exception[] failures) {
+				for (int i = 0; i < failures.length; i++) {
+					if (failures[i] != null) {
+						puts.get(i).fail(ExceptionsHelper.status(failures[i]), "Cannot prepare " + apiAction.getResourceName() + ": " + failures[i].getMessage());
+					}
+				}
+				prepare(channel, items, actions, index + 1);
+			}
+
+			@Override
+			public void onFailure(final Exception e) {
+				if (e instanceof EsRejectedExecutionException) {
+					log.warn("Rejected bulk request due to {}", e.getMessage());
+					try {
+						channel.sendResponse(new BytesRestResponse(channel, e));
+						return;
+					} catch (final IOException ioe) {
+						log.error("Cannot send rejection", ioe);
+					}
+				}
+				log.error("Cannot prepare {} due to", apiAction.getConfigName(), e);
+				internalErrorResponse(channel, "Error " + e.getMessage());
+			}
+		});
+	}
+
+	private void submit(final RestChannel channel, final List<BulkItem> items) {
+
+		final Map<String, List<Mutation>> mutations = new LinkedHashMap<>();
+
+		for (final BulkItem item : items) {
+			if (item.status != null) {
+				// failed before
+				continue;
+			}
+
+			final AbstractApiAction apiAction = apiActions.get(item.type);
+			final Mutation mutation = DELETE.equals(item.action)
+					? apiAction.deleteMutation(item.name)
+					: existenceChecked(item, apiAction, apiAction.putMutation(item.name, item.settings));
+			item.settings = null;
+
+			final List<Mutation> mutationsForType = mutations.computeIfAbsent(item.type, t -> new ArrayList<>());
+			item.mutationIndex = mutationsForType.size();
+			mutationsForType.add(mutation);
+		}
+
+		if (mutations.isEmpty()) {
+			sendResponse(channel, items, new HashMap<>());
+			return;
+		}
+
+		configWriteCoalescer.bulk(mutations, new OnSucessActionListener<Map<String, List<Outcome>>>(channel) {
+
+			@Override
+			public void onResponse(final Map<String, List<Outcome>> outcomes) {
+				sendResponse(channel, items, outcomes);
+			}
+		});
+	}
+
+	/**
+	 * <code>create</code> must not overwrite and <code>update</code> must not
+	 * create a resource, a plain PUT does both
+	 */
+	private static Mutation existenceChecked(final BulkItem item, final AbstractApiAction apiAction, final Mutation put) {
+		final boolean mustExist = UPDATE.equals(item.action);
+		return config -> {
+			if (config.containsKey(item.name) != mustExist) {
+				return mustExist
+						? Outcome.unchanged(RestStatus.NOT_FOUND, apiAction.getResourceName() + " " + item.name + " not found.")
+						: Outcome.unchanged(RestStatus.CONFLICT, "'" + item.name + "' already exists.");
+			}
+			return put.apply(config);
+		};
+	}
+
+	private void sendResponse(final RestChannel channel, final List<BulkItem> items, final Map<String, List<Outcome>> outcomes) {
+		try {
+			boolean errors = false;
+			ConfigPropagator.Result propagation = null;
+			final XContentBuilder builder = XContentFactory.jsonBuilder();
+			builder.startObject();
+			builder.startArray("items");
+			for (final BulkItem item : items) {
+				if (item.mutationIndex >= 0) {
+					final Outcome outcome = outcomes.get(item.type).get(item.mutationIndex);
+					item.status = outcome.getStatus();
+					item.message = outcome.getMessage();
+					item.version = outcome.getVersion();
+					if (outcome.getPropagation() != null) {
+						// all written documents share one reload
+						propagation = outcome.getPropagation();
+					}
+				}
+				errors |= item.status.getStatus() >= 400;
+
+				builder.startObject();
+				builder.startObject(item.action);
+				builder.field("type", item.type);
+				builder.field("name", item.name);
+				builder.field("status", item.status.name());
+				builder.field("message", item.message);
+				if (item.version >= 0) {
+					builder.field("version", item.version);
+				}
+				if (item.error != null) {
+					builder.field("error", item.error);
+				}
+				builder.endObject();
+				builder.endObject();
+			}
+			builder.endArray();
+			builder.field("errors", errors);
+			if (propagation != null) {
+				builder.field("propagation", propagation);
+			}
+			builder.endObject();
+			channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+		} catch (final IOException e) {
+			log.error("Cannot build response", e);
+			internalErrorResponse(channel, e.toString());
+		}
+	}
+
+	/**
+	 * Split the newline delimited body into operations. A malformed action line
+	 * fails the whole request, as we cannot tell where the next operation starts.
+	 */
+	private static List<BulkItem> parse(final BytesReference content) throws IOException {
+
+		final List<BulkItem> items = new ArrayList<>();
+		final int length = content.length();
+		int lineNumber = 0;
+		int from = 0;
+		BulkItem pending = null;
+
+		while (from < length) {
+			int to = from;
+			while (to < length && content.get(to) != '\n') {
+				to++;
+			}
+			final BytesReference line = content.slice(from, to - from);
+			from = to + 1;
+			lineNumber++;
+
+			if (Utils.isBlank(line)) {
+				continue;
+			}
+
+			if (pending != null) {
+				pending.source = line;
+				items.add(pending);
+				pending = null;
+				continue;
+			}
+
+			final BulkItem item = parseActionLine(line, lineNumber);
+			if (DELETE.equals(item.action)) {
+				items.add(item);
+			} else {
+				pending = item;
+			}
+		}
+
+		if (pending != null) {
+			throw new IllegalArgumentException("Missing resource for " + pending.action + " of '" + pending.name + "' in line " + lineNumber);
+		}
+
+		return items;
+	}
+
+	private static BulkItem parseActionLine(final BytesReference line, final int lineNumber) {
+
+		final Map<String, Object> actionLine;
+		try {
+			actionLine = XContentHelper.convertToMap(line, false, XContentType.JSON).v2();
+		} catch (final Exception e) {
+			throw new IllegalArgumentException("Malformed action line " + lineNumber + ": " + e.getMessage());
+		}
+
+		if (actionLine.size() != 1) {
+			throw new IllegalArgumentException("Malformed action line " + lineNumber + ", expected exactly one of " + CREATE + ", " + UPDATE + " or " + DELETE);
+		}
+
+		final String action = actionLine.keySet().iterator().next();
+		if (!CREATE.equals(action) && !UPDATE.equals(action) && !DELETE.equals(action)) {
+			throw new IllegalArgumentException("Unknown action '" + action + "' in line " + lineNumber);
+		}
+
+		if (!(actionLine.get(action) instanceof Map)) {
+			throw new IllegalArgumentException("Malformed action line " + lineNumber + ", expected an object with type and name");
+		}
+
+		final Map<?, ?> metadata = (Map<?, ?>) actionLine.get(action);
+		return new BulkItem(action, metadata.get("type") == null ? null : String.valueOf(metadata.get("type")),
+				metadata.get("name") == null ? null : String.valueOf(metadata.get("name")));
+	}
+
+	@Override
+	protected AbstractConfigurationValidator getValidator(Method method, BytesReference ref) {
+		return new NoOpValidator(method, ref);
+	}
+
+	@Override
+	protected String getResourceName() {
+		// not needed, operates on several resources
+		return null;
+	}
+
+	@Override
+	protected String getConfigName() {
+		// not needed, operates on several configs
+		return null;
+	}
+
+	@Override
+	protected void consumeParameters(final RestRequest request) {
+		// not needed
+	}
+
+	private static final class BulkItem {
+
+		private final String action;
+		private final String type;
+		private final String name;
+		private BytesReference source;
+		private Settings.Builder settings;
+		private int mutationIndex = -1;
+		private RestStatus status;
+		private String message;
+		private long version = -1;
+		private Map<String, Object> error;
+
+		BulkItem(final String action, final String type, final String name) {
+			this.action = action;
+			this.type = type;
+			this.name = name;
+		}
+
+		void fail(final RestStatus status, final String message) {
+			this.status = status;
+			this.message = message;
+		}
+	}
+}
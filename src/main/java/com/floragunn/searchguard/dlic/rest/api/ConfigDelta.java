@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.dlic.rest.api;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * The resources of one configuration document which were changed by a batch of
+ * mutations.
+ * <p>
+ * Mutations only ever replace or remove top level resources, so comparing a
+ * shallow copy taken before the batch with the result is enough to tell which
+ * resources have actually changed.
+ */
+public final class ConfigDelta implements ToXContentObject {
+
+	private final String configType;
+	private final long baseVersion;
+	private final Set<String> upserted;
+	private final Set<String> deleted;
+
+	private ConfigDelta(final String configType, final long baseVersion, final Set<String> upserted, final Set<String> deleted) {
+		this.configType = configType;
+		this.baseVersion = baseVersion;
+		this.upserted = Collections.unmodifiableSet(upserted);
+		this.deleted = Collections.unmodifiableSet(deleted);
+	}
+
+	/**
+	 * @return a shallow copy of the configuration to compare the result of the
+	 *         mutations with
+	 */
+	static Map<String, Object> snapshot(final Map<String, Object> config) {
+		return new HashMap<>(config);
+	}
+
+	static ConfigDelta between(final String configType, final long baseVersion, final Map<String, Object> before,
+			final Map<String, Object> after) {
+
+		final Set<String> upserted = new TreeSet<>();
+		final Set<String> deleted = new TreeSet<>();
+
+		for (final Map.Entry<String, Object> resource : after.entrySet()) {
+			if (!before.containsKey(resource.getKey()) || !Objects.equals(before.get(resource.getKey()), resource.getValue())) {
+				upserted.add(resource.getKey());
+			}
+		}
+
+		for (final String name : before.keySet()) {
+			if (!after.containsKey(name)) {
+				deleted.add(name);
+			}
+		}
+
+		return new ConfigDelta(configType, baseVersion, upserted, deleted);
+	}
+
+	public String getConfigType() {
+		return configType;
+	}
+
+	/**
+	 * @return the version of the document the mutations were applied to
+	 */
+	public long getBaseVersion() {
+		return baseVersion;
+	}
+
+	public Set<String> getUpserted() {
+		return upserted;
+	}
+
+	public Set<String> getDeleted() {
+		return deleted;
+	}
+
+	/**
+	 * @return true if the mutations did not change the document, it does not
+	 *         need to be written or reloaded
+	 */
+	public boolean isEmpty() {
+		return upserted.isEmpty() && deleted.isEmpty();
+	}
+
+	@Override
+	public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+		builder.startObject();
+		builder.field("base_version", baseVersion);
+		builder.field("upserted", upserted);
+		builder.field("deleted", deleted);
+		builder.endObject();
+		return builder;
+	}
+
+	@Override
+	public String toString() {
+		return "ConfigDelta [configType=" + configType + ", baseVersion=" + baseVersion + ", upserted=" + upserted
+				+ ", deleted=" + deleted + "]";
+	}
+}
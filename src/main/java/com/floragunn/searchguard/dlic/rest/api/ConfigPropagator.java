@@ -0,0 +1,324 @@
+/*
+ * Copyright 2018 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.dlic.rest.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.util.concurrent.ThreadContext.StoredContext;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import com.floragunn.searchguard.action.configupdate.ConfigUpdateAction;
+import com.floragunn.searchguard.action.configupdate.ConfigUpdateNodeResponse;
+import com.floragunn.searchguard.action.configupdate.ConfigUpdateRequest;
+import com.floragunn.searchguard.action.configupdate.ConfigUpdateResponse;
+import com.floragunn.searchguard.support.ConfigConstants;
+
+/**
+ * Reloads configuration types on the nodes of the cluster.
+ * <p>
+ * Every node gets its own {@link ConfigUpdateRequest}, so a slow or unreachable
+ * node only delays its own acknowledgement. The caller is notified as soon as
+ * the configured {@link Ack} is reached, nodes which have not answered by then
+ * keep reloading in the background and are only logged if they fail.
+ */
+public class ConfigPropagator {
+
+	public final static String SEARCHGUARD_RESTAPI_CONFIG_UPDATE_ACK = "searchguard.restapi.config_update.ack";
+	public final static String SEARCHGUARD_RESTAPI_CONFIG_UPDATE_NODE_TIMEOUT = "searchguard.restapi.config_update.node_timeout";
+
+	/**
+	 * How many nodes must have reloaded before a write is acknowledged
+	 */
+	public enum Ack {
+		/** every node of the cluster */
+		ALL,
+		/** more than half of the nodes */
+		QUORUM,
+		/** only the node which handled the request, all others reload asynchronously */
+		LOCAL;
+
+		public static Ack parse(final String value) {
+			try {
+				return valueOf(value.trim().toUpperCase(Locale.ROOT));
+			} catch (final IllegalArgumentException e) {
+				throw new IllegalArgumentException("Invalid value '" + value + "' for " + SEARCHGUARD_RESTAPI_CONFIG_UPDATE_ACK
+						+ ", expected one of " + Arrays.toString(values()).toLowerCase(Locale.ROOT));
+			}
+		}
+	}
+
+	protected final Logger log = LogManager.getLogger(this.getClass());
+
+	private final Client client;
+	private final ClusterService cs;
+	private final ThreadContext threadContext;
+	private final Ack ack;
+	private final TimeValue nodeTimeout;
+
+	public ConfigPropagator(final Settings settings, final Client client, final ClusterService cs, final ThreadPool threadPool) {
+		this.client = client;
+		this.cs = cs;
+		this.threadContext = threadPool.getThreadContext();
+		this.ack = Ack.parse(settings.get(SEARCHGUARD_RESTAPI_CONFIG_UPDATE_ACK, "all"));
+		this.nodeTimeout = settings.getAsTime(SEARCHGUARD_RESTAPI_CONFIG_UPDATE_NODE_TIMEOUT, null);
+	}
+
+	public Ack getAck() {
+		return ack;
+	}
+
+	/**
+	 * Reload the given config types on all nodes. The listener receives the
+	 * {@link Result} once the acknowledgement is reached and fails if it can no
+	 * longer be reached because too many nodes failed.
+	 *
+	 * @param deltas
+	 *            the changes which caused the reload, empty if whole documents
+	 *            were written. They are only reported as
+	 *            <code>written_changes</code> in the {@link Result}, the nodes
+	 *            always reload the complete config types.
+	 */
+	public void reload(final String[] configTypes, final List<ConfigDelta> deltas, final ActionListener<Result> listener) {
+
+		final DiscoveryNodes nodes = cs.state().nodes();
+		final Result result = new Result(ack, configTypes, deltas, nodes);
+
+		try (StoredContext ctx = threadContext.stashContext()) {
+			threadContext.putHeader(ConfigConstants.SG_CONF_REQUEST_HEADER, "true");
+
+			for (final DiscoveryNode node : nodes) {
+				final long start = System.nanoTime();
+				final ConfigUpdateRequest request = new ConfigUpdateRequest(configTypes);
+				request.nodesIds(node.getId());
+				if (nodeTimeout != null) {
+					request.timeout(nodeTimeout);
+				}
+
+				client.execute(ConfigUpdateAction.INSTANCE, request, new ActionListener<ConfigUpdateResponse>() {
+
+					@Override
+					public void onResponse(final ConfigUpdateResponse response) {
+						final ConfigUpdateNodeResponse nodeResponse = response.getNodesMap().get(node.getId());
+						String error = null;
+						if (nodeResponse == null) {
+							error = response.hasFailures() ? response.failures().get(0).getDetailedMessage() : "No response";
+						} else if (nodeResponse.getUpdatedConfigTypes() == null
+								|| nodeResponse.getUpdatedConfigTypes().length != configTypes.length) {
+							error = "Expected " + configTypes.length + " config types but got only "
+									+ Arrays.toString(nodeResponse.getUpdatedConfigTypes());
+						}
+						result.record(node.getId(), start, error, listener);
+					}
+
+					@Override
+					public void onFailure(final Exception e) {
+						final String error = e instanceof FailedNodeException ? ((FailedNodeException) e).getDetailedMessage() : e.toString();
+						result.record(node.getId(), start, error, listener);
+					}
+				});
+			}
+		} catch (final Exception e) {
+			log.error("Cannot update {} due to", Arrays.toString(configTypes), e);
+			listener.onFailure(e);
+		}
+	}
+
+	/**
+	 * Reload state of a single node
+	 */
+	public static final class NodeResult {
+
+		private final String name;
+		private final long tookNanos;
+		private final String error;
+
+		private NodeResult(final String name, final long tookNanos, final String error) {
+			this.name = name;
+			this.tookNanos = tookNanos;
+			this.error = error;
+		}
+
+		public boolean isPending() {
+			return tookNanos < 0;
+		}
+
+		public boolean isFailed() {
+			return error != null;
+		}
+
+		public String getError() {
+			return error;
+		}
+
+		public long getTookMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(tookNanos);
+		}
+	}
+
+	/**
+	 * Reload state of all nodes. Nodes which answer after the listener was
+	 * notified are still recorded, so the result reflects the state at the time
+	 * it is rendered.
+	 */
+	public final class Result implements ToXContentObject {
+
+		private final Ack ack;
+		private final String[] configTypes;
+		private final List<ConfigDelta> deltas;
+		private final String localNodeId;
+		private final int required;
+		private final AtomicBoolean notified = new AtomicBoolean(false);
+
+		// guarded by this
+		private final Map<String, NodeResult> nodes = new LinkedHashMap<>();
+		private int reloaded = 0;
+		private int failed = 0;
+
+		private Result(final Ack ack, final String[] configTypes, final List<ConfigDelta> deltas, final DiscoveryNodes discoveryNodes) {
+			this.ack = ack;
+			this.configTypes = configTypes;
+			this.deltas = deltas;
+			this.localNodeId = discoveryNodes.getLocalNodeId();
+			for (final DiscoveryNode node : discoveryNodes) {
+				nodes.put(node.getId(), new NodeResult(node.getName(), -1, null));
+			}
+			this.required = ack == Ack.ALL ? nodes.size() : ack == Ack.QUORUM ? nodes.size() / 2 + 1 : 1;
+		}
+
+		private void record(final String nodeId, final long start, final String error, final ActionListener<Result> listener) {
+
+			final long took = System.nanoTime() - start;
+			final boolean acknowledged;
+			final boolean unreachable;
+
+			synchronized (this) {
+				final NodeResult previous = nodes.get(nodeId);
+				nodes.put(nodeId, new NodeResult(previous == null ? nodeId : previous.name, took, error));
+				if (error == null) {
+					reloaded++;
+				} else {
+					failed++;
+				}
+				acknowledged = ack == Ack.LOCAL ? isReloaded(localNodeId) : reloaded >= required;
+				unreachable = ack == Ack.LOCAL ? isFailed(localNodeId) : nodes.size() - failed < required;
+			}
+
+			if (error != null) {
+				log.error("Cannot update {} on node {} due to {}", Arrays.toString(configTypes), nodeId, error);
+			} else if (log.isDebugEnabled()) {
+				log.debug("Configs {} reloaded on node {} in {} ms", Arrays.toString(configTypes), nodeId,
+						TimeUnit.NANOSECONDS.toMillis(took));
+			}
+
+			if ((acknowledged || unreachable) && notified.compareAndSet(false, true)) {
+				if (acknowledged) {
+					listener.onResponse(this);
+				} else {
+					listener.onFailure(new ElasticsearchException("Unable to update " + Arrays.toString(configTypes)
+							+ " on " + required + " node(s) (ack " + ack.name().toLowerCase(Locale.ROOT) + "), failed on "
+							+ failedNodes()));
+				}
+			}
+		}
+
+		private boolean isReloaded(final String nodeId) {
+			final NodeResult node = nodes.get(nodeId);
+			return node != null && !node.isPending() && !node.isFailed();
+		}
+
+		private boolean isFailed(final String nodeId) {
+			final NodeResult node = nodes.get(nodeId);
+			return node == null || node.isFailed();
+		}
+
+		private synchronized List<String> failedNodes() {
+			final List<String> failedNodes = new ArrayList<>();
+			for (final Map.Entry<String, NodeResult> node : nodes.entrySet()) {
+				if (node.getValue().isFailed()) {
+					failedNodes.add(node.getValue().name + " (" + node.getValue().error + ")");
+				}
+			}
+			return failedNodes;
+		}
+
+		public Ack getAck() {
+			return ack;
+		}
+
+		public List<ConfigDelta> getDeltas() {
+			return deltas;
+		}
+
+		public synchronized Map<String, NodeResult> getNodes() {
+			return new LinkedHashMap<>(nodes);
+		}
+
+		@Override
+		public synchronized XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+			builder.startObject();
+			builder.field("ack", ack.name().toLowerCase(Locale.ROOT));
+			builder.field("total", nodes.size());
+			builder.field("reloaded", reloaded);
+			builder.field("failed", failed);
+			builder.field("pending", nodes.size() - reloaded - failed);
+			if (!deltas.isEmpty()) {
+				builder.startObject("written_changes");
+				for (final ConfigDelta delta : deltas) {
+					builder.field(delta.getConfigType(), delta);
+				}
+				builder.endObject();
+			}
+			builder.startObject("nodes");
+			for (final Map.Entry<String, NodeResult> node : nodes.entrySet()) {
+				final NodeResult nodeResult = node.getValue();
+				builder.startObject(node.getKey());
+				builder.field("name", nodeResult.name);
+				builder.field("state", nodeResult.isPending() ? "pending" : nodeResult.isFailed() ? "failed" : "reloaded");
+				if (!nodeResult.isPending()) {
+					builder.field("took_millis", nodeResult.getTookMillis());
+				}
+				if (nodeResult.isFailed()) {
+					builder.field("error", nodeResult.error);
+				}
+				builder.endObject();
+			}
+			builder.endObject();
+			builder.endObject();
+			return builder;
+		}
+	}
+}
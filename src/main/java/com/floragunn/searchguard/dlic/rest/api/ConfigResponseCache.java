@@ -0,0 +1,193 @@
+/*
+ * Copyright 2018 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.dlic.rest.api;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefIterator;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+import com.floragunn.searchguard.configuration.IndexBaseConfigurationRepository;
+import com.floragunn.searchguard.dlic.rest.support.Utils;
+import com.floragunn.searchguard.support.ConfigConstants;
+
+/**
+ * Rendered GET responses of complete configurations, one per config type. An
+ * entry is dropped as soon as a new version of its configuration has been
+ * loaded on this node, until then it is served without accessing the
+ * configuration repository.
+ * <p>
+ * The ETag of an entry is derived from its content, so all nodes return the
+ * same ETag for the same configuration.
+ */
+public class ConfigResponseCache implements ToXContentObject {
+
+	protected final Logger log = LogManager.getLogger(this.getClass());
+
+	private final IndexBaseConfigurationRepository cl;
+	private final Map<String, CachedResponse> responses = new ConcurrentHashMap<>();
+	// incremented on every reload, guards against caching a response rendered from the previous version
+	private final Map<String, Long> generations = new HashMap<>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	public ConfigResponseCache(final IndexBaseConfigurationRepository cl) {
+		this.cl = cl;
+
+		for (final String configType : ConfigConstants.CONFIG_NAMES) {
+			generations.put(configType, 0L);
+			cl.subscribeOnChange(configType, configuration -> invalidate(configType));
+		}
+	}
+
+	/**
+	 * @return the rendered configuration of the given type, from cache if
+	 *         possible
+	 */
+	public CachedResponse get(final String configType) throws IOException {
+
+		final CachedResponse cached = responses.get(configType);
+		if (cached != null) {
+			hits.incrementAndGet();
+			return cached;
+		}
+
+		misses.incrementAndGet();
+
+		final long generation;
+		synchronized (this) {
+			generation = generations.getOrDefault(configType, 0L);
+		}
+
+		final CachedResponse rendered = CachedResponse.render(cl.getConfiguration(configType));
+
+		synchronized (this) {
+			// only cache if the configuration has not been reloaded while rendering
+			if (generations.containsKey(configType) && generations.get(configType) == generation) {
+				responses.put(configType, rendered);
+			}
+		}
+
+		return rendered;
+	}
+
+	/**
+	 * Drop all rendered responses, they are rendered again on the next request
+	 */
+	public void clear() {
+		for (final String configType : ConfigConstants.CONFIG_NAMES) {
+			invalidate(configType);
+		}
+	}
+
+	private synchronized void invalidate(final String configType) {
+		generations.put(configType, generations.getOrDefault(configType, 0L) + 1);
+		if (responses.remove(configType) != null) {
+			invalidations.incrementAndGet();
+		}
+
+		if (log.isDebugEnabled()) {
+			log.debug("Cached response for {} invalidated", configType);
+		}
+	}
+
+	@Override
+	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+		builder.startObject();
+		builder.field("entries", responses.size());
+		builder.field("hits", hits.get());
+		builder.field("misses", misses.get());
+		builder.field("invalidations", invalidations.get());
+		builder.endObject();
+		return builder;
+	}
+
+	public static final class CachedResponse {
+
+		private final BytesReference content;
+		private final String etag;
+
+		private CachedResponse(final BytesReference content, final String etag) {
+			this.content = content;
+			this.etag = etag;
+		}
+
+		static CachedResponse render(final Settings settings) throws IOException {
+			final XContentBuilder builder = XContentFactory.jsonBuilder();
+			builder.prettyPrint();
+			builder.startObject();
+			if (settings != null) {
+				Utils.writeStructured(builder, settings);
+			}
+			builder.endObject();
+
+			// the content is kept in pages, digest it page by page instead of copying it
+			final BytesReference content = builder.bytes();
+			final MessageDigest digest = MessageDigests.sha256();
+			final BytesRefIterator pages = content.iterator();
+			for (BytesRef page = pages.next(); page != null; page = pages.next()) {
+				digest.update(page.bytes, page.offset, page.length);
+			}
+
+			return new CachedResponse(content, "\"" + MessageDigests.toHexString(digest.digest()) + "\"");
+		}
+
+		public BytesReference getContent() {
+			return content;
+		}
+
+		/**
+		 * @return the strong, quoted ETag of this response
+		 */
+		public String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * @return true if the given <code>If-None-Match</code> header matches
+		 *         this response, i.e. the client already has it
+		 */
+		public boolean matches(final String ifNoneMatch) {
+			if (ifNoneMatch == null) {
+				return false;
+			}
+			for (String candidate : ifNoneMatch.split(",")) {
+				candidate = candidate.trim();
+				// If-None-Match uses the weak comparison
+				if (candidate.startsWith("W/")) {
+					candidate = candidate.substring(2);
+				}
+				if (candidate.equals("*") || candidate.equals(etag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
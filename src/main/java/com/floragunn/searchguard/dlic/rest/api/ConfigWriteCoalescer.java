@@ -0,0 +1,933 @@
+/*
+ * Copyright 2018 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.dlic.rest.api;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.util.concurrent.ThreadContext.StoredContext;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import com.floragunn.searchguard.action.configupdate.ConfigUpdateAction;
+import com.floragunn.searchguard.dlic.rest.support.Utils;
+import com.floragunn.searchguard.support.ConfigConstants;
+
+/**
+ * Serializes and merges modifications of the same configuration document.
+ * <p>
+ * Mutations submitted while a write for a config type is in flight are queued
+ * and applied together on top of the then current configuration, which results
+ * in one index request and one config reload for the whole batch. Since batches
+ * of one type never overlap, no mutation is lost because it started from a stale
+ * copy of the document. Every submitter is notified with its own {@link Outcome}.
+ * <p>
+ * Each batch is based on a versioned read of the configuration document and is
+ * written back with a conditional index request. Writes of other nodes are thus
+ * detected, in which case the batch is re-applied on top of the new version.
+ * <p>
+ * Written documents are reloaded through the {@link ConfigPropagator}, a write
+ * is acknowledged once enough nodes have reloaded it. Batches whose
+ * {@link ConfigDelta} is empty are neither written nor reloaded.
+ */
+public class ConfigWriteCoalescer {
+
+	/** How often a batch is re-applied after a version conflict caused by a concurrent writer */
+	private final static int MAX_CONFLICT_RETRIES = 3;
+
+	protected final Logger log = LogManager.getLogger(this.getClass());
+
+	private final String searchguardIndex;
+	private final Client client;
+	private final ClusterService cs;
+	private final ThreadContext threadContext;
+	private final RestApiThreadPool restApiThreadPool;
+	private final ConfigPropagator configPropagator;
+	private final Map<String, PendingWrites> pendingWrites = new ConcurrentHashMap<>();
+
+	public ConfigWriteCoalescer(final Settings settings, final Client client, final ClusterService cs,
+			final ThreadPool threadPool, final RestApiThreadPool restApiThreadPool) {
+		this.searchguardIndex = settings.get(ConfigConstants.SEARCHGUARD_CONFIG_INDEX_NAME,
+				ConfigConstants.SG_DEFAULT_CONFIG_INDEX);
+		this.client = client;
+		this.cs = cs;
+		this.threadContext = threadPool.getThreadContext();
+		this.restApiThreadPool = restApiThreadPool;
+		this.configPropagator = new ConfigPropagator(settings, client, cs, threadPool);
+	}
+
+	/**
+	 * Queue a mutation for the given config type. The listener is notified once
+	 * the mutation has been persisted and reloaded on enough nodes, or immediately
+	 * if the mutation did not modify the configuration.
+	 *
+	 * @param expectedVersion
+	 *            the document version the caller based its change on, or
+	 *            {@link Versions#MATCH_ANY}
+	 */
+	public void submit(final String configType, final long expectedVersion, final Mutation mutation,
+			final ActionListener<Outcome> listener) {
+		pendingWrites.computeIfAbsent(configType, PendingWrites::new)
+				.add(new PendingMutation(mutation, expectedVersion, listener));
+	}
+
+	/**
+	 * Load the given configuration document together with its version
+	 */
+	public void load(final String configType, final ActionListener<VersionedConfig> listener) {
+
+		final String[] typeAndId = typeAndId(configType);
+
+		try (StoredContext ctx = threadContext.stashContext()) {
+			threadContext.putHeader(ConfigConstants.SG_CONF_REQUEST_HEADER, "true");
+
+			client.get(new GetRequest(searchguardIndex, typeAndId[0], typeAndId[1]).realtime(true),
+					new ActionListener<GetResponse>() {
+
+						@Override
+						public void onResponse(final GetResponse response) {
+							try {
+								listener.onResponse(toVersionedConfig(configType, response));
+							} catch (final Exception e) {
+								listener.onFailure(e);
+							}
+						}
+
+						@Override
+						public void onFailure(final Exception e) {
+							listener.onFailure(e);
+						}
+					});
+		}
+	}
+
+	/**
+	 * Index the given configuration document and reload it on all nodes.
+	 *
+	 * @param version
+	 *            only write if the document still has this version, use
+	 *            {@link Versions#MATCH_ANY} to write unconditionally
+	 */
+	public void write(final String configType, final BytesReference source, final long version,
+			final ActionListener<IndexResponse> listener) {
+		writeAndReload(configType, source, version, Collections.emptyList(),
+				ActionListener.wrap(r -> listener.onResponse(r.v1()), listener::onFailure));
+	}
+
+	private void writeAndReload(final String configType, final BytesReference source, final long version,
+			final List<ConfigDelta> deltas, final ActionListener<Tuple<IndexResponse, ConfigPropagator.Result>> listener) {
+
+		try (StoredContext ctx = threadContext.stashContext()) {
+			threadContext.putHeader(ConfigConstants.SG_CONF_REQUEST_HEADER, "true");
+
+			client.index(indexRequest(configType, source, version).setRefreshPolicy(RefreshPolicy.IMMEDIATE),
+					new ConfigUpdatingActionListener<IndexResponse>(new String[] { configType }, deltas, listener));
+		}
+	}
+
+	/**
+	 * Apply mutations to several configuration documents at once. Each document is
+	 * read and written only once and a single config reload is sent for all of them.
+	 * Documents written concurrently by other nodes are re-read and their mutations
+	 * re-applied.
+	 * <p>
+	 * The bulk write holds the queues of all its config types, so it neither races
+	 * with single mutations submitted on this node nor with other bulk writes. The
+	 * queues are taken in a fixed order to rule out deadlocks between bulk writes.
+	 *
+	 * @param listener
+	 *            receives the outcomes in the same order as the mutations per
+	 *            config type
+	 */
+	public void bulk(final Map<String, List<Mutation>> mutations, final ActionListener<Map<String, List<Outcome>>> listener) {
+
+		final List<String> configTypes = new ArrayList<>(new TreeSet<>(mutations.keySet()));
+
+		final ActionListener<Map<String, List<Outcome>>> releasingListener = new ActionListener<Map<String, List<Outcome>>>() {
+
+			@Override
+			public void onResponse(final Map<String, List<Outcome>> outcomes) {
+				release(configTypes);
+				listener.onResponse(outcomes);
+			}
+
+			@Override
+			public void onFailure(final Exception e) {
+				release(configTypes);
+				listener.onFailure(e);
+			}
+		};
+
+		acquire(configTypes, 0, () -> new BulkWrite(mutations, releasingListener).run(configTypes));
+	}
+
+	private void acquire(final List<String> configTypes, final int index, final Runnable onAcquired) {
+		if (index == configTypes.size()) {
+			onAcquired.run();
+			return;
+		}
+		pendingWrites.computeIfAbsent(configTypes.get(index), PendingWrites::new)
+				.acquire(() -> acquire(configTypes, index + 1, onAcquired));
+	}
+
+	private void release(final List<String> configTypes) {
+		for (final String configType : configTypes) {
+			pendingWrites.get(configType).release();
+		}
+	}
+
+	private IndexRequest indexRequest(final String configType, final BytesReference source, final long version) {
+		final String[] typeAndId = typeAndId(configType);
+		final IndexRequest ir = new IndexRequest(searchguardIndex).type(typeAndId[0]).id(typeAndId[1]).source(configType, source);
+
+		if (version >= 0) {
+			ir.version(version);
+		}
+
+		return ir;
+	}
+
+	/**
+	 * Reload the given config types, the listener is notified once the
+	 * configured acknowledgement is reached
+	 */
+	private void reload(final String[] configTypes, final List<ConfigDelta> deltas, final ActionListener<ConfigPropagator.Result> listener) {
+		configPropagator.reload(configTypes, deltas, new ActionListener<ConfigPropagator.Result>() {
+
+			@Override
+			public void onResponse(final ConfigPropagator.Result result) {
+				if (log.isDebugEnabled()) {
+					log.debug("Configs {} successfully reloaded", Arrays.toString(configTypes));
+				}
+				listener.onResponse(result);
+			}
+
+			@Override
+			public void onFailure(final Exception e) {
+				log.error("Cannot update {} due to", Arrays.toString(configTypes), e);
+				listener.onFailure(e);
+			}
+		});
+	}
+
+	private String[] typeAndId(final String configType) {
+		if (cs.state().metaData().index(this.searchguardIndex).mapping("config") != null) {
+			return new String[] { configType, "0" };
+		}
+		return new String[] { "sg", configType };
+	}
+
+	private static VersionedConfig toVersionedConfig(final String configType, final GetResponse response) throws Exception {
+
+		if (!response.isExists() || response.isSourceEmpty()) {
+			return new VersionedConfig(new HashMap<>(), Versions.MATCH_ANY);
+		}
+
+		try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY,
+				response.getSourceAsBytesRef(), XContentType.JSON)) {
+			parser.nextToken();
+			parser.nextToken();
+
+			if (!configType.equals(parser.currentName())) {
+				return new VersionedConfig(new HashMap<>(), response.getVersion());
+			}
+
+			parser.nextToken();
+
+			final Map<String, Object> config = XContentHelper
+					.convertToMap(new BytesArray(parser.binaryValue()), false, XContentType.JSON).v2();
+			return new VersionedConfig(config, response.getVersion());
+		}
+	}
+
+	/**
+	 * Continue on the REST API pool, never on the calling thread, which may be a
+	 * network thread. If the pool rejects the task, the affected writes fail with
+	 * 429 instead.
+	 */
+	private void fork(final Runnable task, final Consumer<Exception> onRejected) {
+		try {
+			restApiThreadPool.execute(task);
+		} catch (final EsRejectedExecutionException e) {
+			log.warn("Cannot continue config write due to {}", e.getMessage());
+			onRejected.accept(e);
+		}
+	}
+
+	/**
+	 * A single change of a configuration document
+	 */
+	@FunctionalInterface
+	public interface Mutation {
+
+		/**
+		 * Apply the change to the structured configuration. Implementations must
+		 * only modify the map if the returned outcome is marked as modified. A
+		 * mutation may be applied more than once if the batch has to be retried.
+		 */
+		Outcome apply(Map<String, Object> config);
+	}
+
+	public static final class VersionedConfig {
+
+		private final Map<String, Object> config;
+		private final long version;
+
+		public VersionedConfig(final Map<String, Object> config, final long version) {
+			this.config = config;
+			this.version = version;
+		}
+
+		public Map<String, Object> getConfig() {
+			return config;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+	}
+
+	public static final class Outcome {
+
+		private final RestStatus status;
+		private final String message;
+		private final boolean modified;
+		private final long version;
+		private final ConfigPropagator.Result propagation;
+
+		private Outcome(final RestStatus status, final String message, final boolean modified, final long version,
+				final ConfigPropagator.Result propagation) {
+			this.status = status;
+			this.message = message;
+			this.modified = modified;
+			this.version = version;
+			this.propagation = propagation;
+		}
+
+		public static Outcome modified(final RestStatus status, final String message) {
+			return new Outcome(status, message, true, Versions.MATCH_ANY, null);
+		}
+
+		public static Outcome unchanged(final RestStatus status, final String message) {
+			return new Outcome(status, message, false, Versions.MATCH_ANY, null);
+		}
+
+		public static Outcome conflict(final long currentVersion) {
+			return new Outcome(RestStatus.CONFLICT, "Version conflict, current version is " + currentVersion, false,
+					currentVersion, null);
+		}
+
+		Outcome withVersion(final long version) {
+			return new Outcome(status, message, modified, version, propagation);
+		}
+
+		Outcome withPropagation(final ConfigPropagator.Result propagation) {
+			return new Outcome(status, message, modified, version, propagation);
+		}
+
+		public RestStatus getStatus() {
+			return status;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		public boolean isModified() {
+			return modified;
+		}
+
+		/**
+		 * @return the version of the document after the write, or the current
+		 *         version in case of a conflict. {@link Versions#MATCH_ANY} if
+		 *         unknown.
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return the reload state of the nodes, <code>null</code> if nothing was
+		 *         written
+		 */
+		public ConfigPropagator.Result getPropagation() {
+			return propagation;
+		}
+
+		@Override
+		public String toString() {
+			return "Outcome [status=" + status + ", message=" + message + ", modified=" + modified + ", version="
+					+ version + "]";
+		}
+	}
+
+	/**
+	 * Listener which, on success of the wrapped action, triggers a
+	 * {@link ConfigUpdateAction} for the given config types and only then
+	 * notifies the delegate.
+	 */
+	private class ConfigUpdatingActionListener<Response> implements ActionListener<Response> {
+
+		private final String[] configTypes;
+		private final List<ConfigDelta> deltas;
+		private final ActionListener<Tuple<Response, ConfigPropagator.Result>> delegate;
+
+		ConfigUpdatingActionListener(final String[] configTypes, final List<ConfigDelta> deltas,
+				final ActionListener<Tuple<Response, ConfigPropagator.Result>> delegate) {
+			this.configTypes = configTypes;
+			this.deltas = deltas;
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void onResponse(final Response response) {
+
+			if (log.isDebugEnabled()) {
+				log.debug("{} successfully updated", Arrays.toString(configTypes));
+			}
+
+			reload(configTypes, deltas, new ActionListener<ConfigPropagator.Result>() {
+
+				@Override
+				public void onResponse(final ConfigPropagator.Result result) {
+					delegate.onResponse(new Tuple<>(response, result));
+				}
+
+				@Override
+				public void onFailure(final Exception e) {
+					delegate.onFailure(e);
+				}
+			});
+		}
+
+		@Override
+		public void onFailure(final Exception e) {
+			if (!(ExceptionsHelper.unwrapCause(e) instanceof VersionConflictEngineException)) {
+				log.error("Cannot update {} due to", Arrays.toString(configTypes), e);
+			}
+			delegate.onFailure(e);
+		}
+
+	}
+
+	/**
+	 * State of a single {@link ConfigWriteCoalescer#bulk(Map, ActionListener)} call
+	 */
+	private final class BulkWrite {
+
+		private final Map<String, List<Mutation>> mutations;
+		private final ActionListener<Map<String, List<Outcome>>> listener;
+		private final Map<String, List<Outcome>> outcomes = new HashMap<>();
+		private final List<String> written = new ArrayList<>();
+		private final Map<String, ConfigDelta> deltas = new HashMap<>();
+		private int attempts = 0;
+
+		BulkWrite(final Map<String, List<Mutation>> mutations, final ActionListener<Map<String, List<Outcome>>> listener) {
+			this.mutations = mutations;
+			this.listener = listener;
+		}
+
+		void run(final List<String> configTypes) {
+
+			final MultiGetRequest mget = new MultiGetRequest().realtime(true);
+			for (final String configType : configTypes) {
+				final String[] typeAndId = typeAndId(configType);
+				mget.add(searchguardIndex, typeAndId[0], typeAndId[1]);
+			}
+
+			try (StoredContext ctx = threadContext.stashContext()) {
+				threadContext.putHeader(ConfigConstants.SG_CONF_REQUEST_HEADER, "true");
+
+				client.multiGet(mget, new ActionListener<MultiGetResponse>() {
+
+					@Override
+					public void onResponse(final MultiGetResponse response) {
+						fork(() -> apply(configTypes, response), listener::onFailure);
+					}
+
+					@Override
+					public void onFailure(final Exception e) {
+						log.error("Cannot load {} due to", configTypes, e);
+						listener.onFailure(e);
+					}
+				});
+			} catch (final Exception e) {
+				listener.onFailure(e);
+			}
+		}
+
+		private void apply(final List<String> configTypes, final MultiGetResponse response) {
+
+			final BulkRequest bulk = new BulkRequest().setRefreshPolicy(RefreshPolicy.IMMEDIATE);
+			final List<String> bulkTypes = new ArrayList<>(configTypes.size());
+
+			for (int i = 0; i < configTypes.size(); i++) {
+				final String configType = configTypes.get(i);
+				final MultiGetItemResponse item = response.getResponses()[i];
+				final List<Outcome> typeOutcomes = new ArrayList<>(mutations.get(configType).size());
+				outcomes.put(configType, typeOutcomes);
+
+				final VersionedConfig versionedConfig;
+				try {
+					if (item.isFailed()) {
+						throw item.getFailure().getFailure();
+					}
+					versionedConfig = toVersionedConfig(configType, item.getResponse());
+				} catch (final Exception e) {
+					log.error("Cannot load {} due to", configType, e);
+					for (int m = 0; m < mutations.get(configType).size(); m++) {
+						typeOutcomes.add(Outcome.unchanged(RestStatus.INTERNAL_SERVER_ERROR, "Cannot load " + configType + ": " + e.getMessage()));
+					}
+					continue;
+				}
+
+				final Map<String, Object> before = ConfigDelta.snapshot(versionedConfig.getConfig());
+				boolean modified = false;
+				for (final Mutation mutation : mutations.get(configType)) {
+					Outcome outcome;
+					try {
+						outcome = mutation.apply(versionedConfig.getConfig());
+					} catch (final Exception e) {
+						log.error("Cannot apply mutation to {} due to", configType, e);
+						outcome = Outcome.unchanged(RestStatus.INTERNAL_SERVER_ERROR, e.toString());
+					}
+					modified |= outcome.isModified();
+					typeOutcomes.add(outcome);
+				}
+
+				if (!modified) {
+					continue;
+				}
+
+				final ConfigDelta delta = ConfigDelta.between(configType, versionedConfig.getVersion(), before, versionedConfig.getConfig());
+				if (delta.isEmpty()) {
+					// e.g. a resource was put unchanged, nothing to write or reload
+					if (log.isDebugEnabled()) {
+						log.debug("Mutations did not change {}, skipping write", configType);
+					}
+					setVersion(configType, versionedConfig.getVersion());
+					continue;
+				}
+
+				deltas.put(configType, delta);
+				bulk.add(indexRequest(configType, Utils.convertStructuredMapToBytes(versionedConfig.getConfig()),
+						versionedConfig.getVersion()));
+				bulkTypes.add(configType);
+			}
+
+			if (bulkTypes.isEmpty()) {
+				finish();
+				return;
+			}
+
+			if (log.isDebugEnabled()) {
+				log.debug("Writing {} in a single bulk request", bulkTypes);
+			}
+
+			try (StoredContext ctx = threadContext.stashContext()) {
+				threadContext.putHeader(ConfigConstants.SG_CONF_REQUEST_HEADER, "true");
+
+				client.bulk(bulk, new ActionListener<BulkResponse>() {
+
+					@Override
+					public void onResponse(final BulkResponse bulkResponse) {
+						final List<String> retries = new ArrayList<>();
+						final BulkItemResponse[] items = bulkResponse.getItems();
+
+						for (int i = 0; i < items.length; i++) {
+							final String configType = bulkTypes.get(i);
+
+							if (!items[i].isFailed()) {
+								written.add(configType);
+								setVersion(configType, items[i].getResponse().getVersion());
+							} else if (items[i].getFailure().getStatus() == RestStatus.CONFLICT && attempts < MAX_CONFLICT_RETRIES) {
+								retries.add(configType);
+							} else {
+								log.error("Cannot write {} due to {}", configType, items[i].getFailureMessage());
+								fail(configType, items[i].getFailure().getStatus(), items[i].getFailureMessage());
+							}
+						}
+
+						if (!retries.isEmpty()) {
+							attempts++;
+							if (log.isDebugEnabled()) {
+								log.debug("Version conflict writing {}, retrying", retries);
+							}
+							run(retries);
+							return;
+						}
+
+						finish();
+					}
+
+					@Override
+					public void onFailure(final Exception e) {
+						log.error("Cannot write {} due to", bulkTypes, e);
+						for (final String configType : bulkTypes) {
+							fail(configType, RestStatus.INTERNAL_SERVER_ERROR, e.toString());
+						}
+						finish();
+					}
+				});
+			} catch (final Exception e) {
+				listener.onFailure(e);
+			}
+		}
+
+		private void setVersion(final String configType, final long version) {
+			outcomes.get(configType).replaceAll(o -> o.isModified() ? o.withVersion(version) : o);
+		}
+
+		private void fail(final String configType, final RestStatus status, final String message) {
+			outcomes.get(configType).replaceAll(o -> o.isModified() ? Outcome.unchanged(status, message) : o);
+		}
+
+		private void finish() {
+
+			if (written.isEmpty()) {
+				listener.onResponse(outcomes);
+				return;
+			}
+
+			// one reload for all written documents
+			final List<ConfigDelta> writtenDeltas = new ArrayList<>(written.size());
+			for (final String configType : written) {
+				writtenDeltas.add(deltas.get(configType));
+			}
+
+			reload(written.toArray(new String[0]), writtenDeltas, new ActionListener<ConfigPropagator.Result>() {
+
+				@Override
+				public void onResponse(final ConfigPropagator.Result result) {
+					for (final String configType : written) {
+						outcomes.get(configType).replaceAll(o -> o.isModified() ? o.withPropagation(result) : o);
+					}
+					listener.onResponse(outcomes);
+				}
+
+				@Override
+				public void onFailure(final Exception e) {
+					listener.onFailure(e);
+				}
+			});
+		}
+	}
+
+	private static final class PendingMutation {
+		final Mutation mutation;
+		final long expectedVersion;
+		final ActionListener<Outcome> listener;
+		Outcome outcome;
+		int attempts = 0;
+
+		PendingMutation(final Mutation mutation, final long expectedVersion, final ActionListener<Outcome> listener) {
+			this.mutation = mutation;
+			this.expectedVersion = expectedVersion;
+			this.listener = listener;
+		}
+	}
+
+	private final class PendingWrites {
+
+		private final String configType;
+
+		// guarded by this
+		private List<PendingMutation> queue = new ArrayList<>();
+		private final Deque<Runnable> exclusive = new ArrayDeque<>();
+		private boolean writing = false;
+
+		PendingWrites(final String configType) {
+			this.configType = configType;
+		}
+
+		void add(final PendingMutation pending) {
+			synchronized (this) {
+				queue.add(pending);
+				if (writing) {
+					// will be picked up by the next batch
+					return;
+				}
+				writing = true;
+			}
+			flush(new ArrayList<>(0));
+		}
+
+		/**
+		 * Run the task as soon as no batch of this config type is in flight. No
+		 * further batch is started until {@link #release()} is called.
+		 */
+		void acquire(final Runnable task) {
+			synchronized (this) {
+				if (writing) {
+					exclusive.add(task);
+					return;
+				}
+				writing = true;
+			}
+			task.run();
+		}
+
+		void release() {
+			flushNext();
+		}
+
+		/**
+		 * @param retries
+		 *            mutations of the previous batch which need to be re-applied
+		 *            because the document was modified concurrently
+		 */
+		private void flush(final List<PendingMutation> retries) {
+			final List<PendingMutation> batch = new ArrayList<>(retries);
+			final Runnable exclusiveTask;
+			synchronized (this) {
+				// a waiting bulk write goes first, unless a batch has to be retried
+				exclusiveTask = retries.isEmpty() ? exclusive.poll() : null;
+				if (exclusiveTask == null) {
+					batch.addAll(queue);
+					queue = new ArrayList<>();
+					if (batch.isEmpty()) {
+						writing = false;
+						return;
+					}
+				}
+			}
+
+			if (exclusiveTask != null) {
+				exclusiveTask.run();
+				return;
+			}
+
+			final ActionListener<VersionedConfig> loadListener = new ActionListener<VersionedConfig>() {
+
+				@Override
+				public void onResponse(final VersionedConfig versionedConfig) {
+					fork(() -> apply(batch, versionedConfig), e -> {
+						for (final PendingMutation pending : batch) {
+							pending.listener.onFailure(e);
+						}
+						flushNext();
+					});
+				}
+
+				@Override
+				public void onFailure(final Exception e) {
+					log.error("Cannot load {} due to", configType, e);
+					for (final PendingMutation pending : batch) {
+						pending.listener.onFailure(e);
+					}
+					flushNext();
+				}
+			};
+
+			try {
+				load(configType, loadListener);
+			} catch (final Exception e) {
+				loadListener.onFailure(e);
+			}
+		}
+
+		private void apply(final List<PendingMutation> batch, final VersionedConfig versionedConfig) {
+
+			final Map<String, Object> config = versionedConfig.getConfig();
+			final long baseVersion = versionedConfig.getVersion();
+			final Map<String, Object> before = ConfigDelta.snapshot(config);
+			final List<PendingMutation> modified = new ArrayList<>(batch.size());
+			final List<PendingMutation> conflicts = new ArrayList<>(0);
+
+			for (final PendingMutation pending : batch) {
+
+				// once an earlier mutation of this batch changed the document, it no longer
+				// has the version any caller could have based its change on
+				if (pending.expectedVersion != Versions.MATCH_ANY
+						&& (!modified.isEmpty() || pending.expectedVersion != baseVersion)) {
+					if (modified.isEmpty()) {
+						pending.listener.onResponse(Outcome.conflict(baseVersion));
+					} else {
+						// the current version is only known once the earlier mutations are written
+						conflicts.add(pending);
+					}
+					continue;
+				}
+
+				try {
+					pending.outcome = pending.mutation.apply(config);
+				} catch (final Exception e) {
+					log.error("Cannot apply mutation to {} due to", configType, e);
+					pending.listener.onFailure(e);
+					continue;
+				}
+
+				if (pending.outcome.isModified()) {
+					modified.add(pending);
+				} else {
+					pending.listener.onResponse(pending.outcome);
+				}
+			}
+
+			if (modified.isEmpty()) {
+				flushNext();
+				return;
+			}
+
+			final ConfigDelta delta = ConfigDelta.between(configType, baseVersion, before, config);
+			if (delta.isEmpty()) {
+				// e.g. a resource was put unchanged, writing it would only cause a reload on every node
+				if (log.isDebugEnabled()) {
+					log.debug("{} coalesced mutation(s) did not change {}, skipping write", modified.size(), configType);
+				}
+				for (final PendingMutation pending : modified) {
+					pending.listener.onResponse(pending.outcome.withVersion(baseVersion));
+				}
+				for (final PendingMutation pending : conflicts) {
+					pending.listener.onResponse(Outcome.conflict(baseVersion));
+				}
+				flushNext();
+				return;
+			}
+
+			if (log.isDebugEnabled()) {
+				log.debug("Writing {} version {} with {} coalesced mutation(s): {}", configType, baseVersion, modified.size(), delta);
+			}
+
+			final ActionListener<Tuple<IndexResponse, ConfigPropagator.Result>> writeListener = new ActionListener<Tuple<IndexResponse, ConfigPropagator.Result>>() {
+
+				@Override
+				public void onResponse(final Tuple<IndexResponse, ConfigPropagator.Result> response) {
+					for (final PendingMutation pending : modified) {
+						pending.listener.onResponse(pending.outcome.withVersion(response.v1().getVersion()).withPropagation(response.v2()));
+					}
+					for (final PendingMutation pending : conflicts) {
+						pending.listener.onResponse(Outcome.conflict(response.v1().getVersion()));
+					}
+					flushNext();
+				}
+
+				@Override
+				public void onFailure(final Exception e) {
+
+					if (ExceptionsHelper.unwrapCause(e) instanceof VersionConflictEngineException) {
+						// the document was written by someone else in the meantime
+						final List<PendingMutation> retries = new ArrayList<>(modified.size());
+						for (final PendingMutation pending : modified) {
+							if (++pending.attempts <= MAX_CONFLICT_RETRIES) {
+								retries.add(pending);
+							} else {
+								conflicts.add(pending);
+							}
+						}
+						if (log.isDebugEnabled()) {
+							log.debug("Version conflict writing {} version {}, retrying {} mutation(s)", configType,
+									baseVersion, retries.size());
+						}
+						conflictWithCurrentVersion(conflicts);
+						flush(retries);
+						return;
+					}
+
+					for (final PendingMutation pending : modified) {
+						pending.listener.onFailure(e);
+					}
+					conflictWithCurrentVersion(conflicts);
+					flushNext();
+				}
+			};
+
+			try {
+				writeAndReload(configType, Utils.convertStructuredMapToBytes(config), baseVersion, Collections.singletonList(delta), writeListener);
+			} catch (final Exception e) {
+				log.error("Cannot write {} due to", configType, e);
+				writeListener.onFailure(e);
+			}
+		}
+
+		/**
+		 * Answer mutations which cannot be applied with the version the document
+		 * has now, the version this attempt was based on has been superseded
+		 */
+		private void conflictWithCurrentVersion(final List<PendingMutation> conflicts) {
+
+			if (conflicts.isEmpty()) {
+				return;
+			}
+
+			final ActionListener<VersionedConfig> currentListener = new ActionListener<VersionedConfig>() {
+
+				@Override
+				public void onResponse(final VersionedConfig current) {
+					for (final PendingMutation pending : conflicts) {
+						pending.listener.onResponse(Outcome.conflict(current.getVersion()));
+					}
+				}
+
+				@Override
+				public void onFailure(final Exception e) {
+					log.error("Cannot load {} due to", configType, e);
+					for (final PendingMutation pending : conflicts) {
+						pending.listener.onFailure(e);
+					}
+				}
+			};
+
+			try {
+				load(configType, currentListener);
+			} catch (final Exception e) {
+				currentListener.onFailure(e);
+			}
+		}
+
+		private void flushNext() {
+			// only loads the document, applying the next batch is forked again
+			flush(new ArrayList<>(0));
+		}
+	}
+}
@@ -23,5 +23,7 @@ public enum Endpoint {
 	ROLESMAPPING,
 	INTERNALUSERS,
 	SYSTEMINFO,
+	BULK,
+	IMPORT,
 	PERMISSIONSINFO;
 }
@@ -14,24 +14,21 @@
 package com.floragunn.searchguard.dlic.rest.api;
 
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.Arrays;
 
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.bytes.BytesReference;
-import org.elasticsearch.common.collect.Tuple;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.settings.Settings.Builder;
+import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestRequest;
 import org.elasticsearch.rest.RestRequest.Method;
 import org.elasticsearch.threadpool.ThreadPool;
-import org.elasticsearch.rest.RestResponse;
 
 import com.floragunn.searchguard.action.configupdate.ConfigUpdateAction;
 import com.floragunn.searchguard.action.configupdate.ConfigUpdateRequest;
@@ -43,15 +40,19 @@ import com.floragunn.searchguard.configuration.PrivilegesEvaluator;
 import com.floragunn.searchguard.dlic.rest.validation.AbstractConfigurationValidator;
 import com.floragunn.searchguard.dlic.rest.validation.NoOpValidator;
 import com.floragunn.searchguard.ssl.transport.PrincipalExtractor;
+import com.floragunn.searchguard.support.ConfigConstants;
 
 public class FlushCacheApiAction extends AbstractApiAction {
 
 	@Inject
 	public FlushCacheApiAction(final Settings settings, final Path configPath, final RestController controller, final Client client,
 			final AdminDNs adminDNs, final IndexBaseConfigurationRepository cl, final ClusterService cs,
-            final PrincipalExtractor principalExtractor, final PrivilegesEvaluator evaluator, ThreadPool threadPool, AuditLog auditLog) {
-		super(settings, configPath, controller, client, adminDNs, cl, cs, principalExtractor, evaluator, threadPool, auditLog);
+            final PrincipalExtractor principalExtractor, final PrivilegesEvaluator evaluator, ThreadPool threadPool, AuditLog auditLog, final RestApiThreadPool restApiThreadPool,
+			final ConfigWriteCoalescer configWriteCoalescer, final ConfigResponseCache configResponseCache,
+			final RestApiPrivilegesEvaluator restApiPrivilegesEvaluator) {
+		super(settings, configPath, controller, client, adminDNs, cl, cs, principalExtractor, evaluator, threadPool, auditLog, restApiThreadPool, configWriteCoalescer, configResponseCache, restApiPrivilegesEvaluator);
 		controller.registerHandler(Method.DELETE, "/_searchguard/api/cache", this);
+		controller.registerHandler(Method.DELETE, "/_searchguard/api/cache/{types}", this);
 		controller.registerHandler(Method.GET, "/_searchguard/api/cache", this);
 		controller.registerHandler(Method.PUT, "/_searchguard/api/cache", this);
 		controller.registerHandler(Method.POST, "/_searchguard/api/cache", this);
@@ -63,64 +64,67 @@ public class FlushCacheApiAction extends AbstractApiAction {
 	}
 
 	@Override
-	protected Tuple<String[], RestResponse> handleDelete(RestRequest request, Client client, Builder additionalSettingsBuilder)
+	protected void handleDelete(final RestChannel channel, RestRequest request, Client client, Builder additionalSettingsBuilder)
 			throws Throwable {
 
-		final Semaphore sem = new Semaphore(0);
-		final List<Throwable> exception = new ArrayList<Throwable>(1);
+		// only reload the given types, all if none are given
+		final String[] configTypes = Strings.splitStringByCommaToArray(request.param("types"));
+		for (final String configType : configTypes) {
+			if (!ConfigConstants.CONFIG_NAMES.contains(configType)) {
+				badRequestResponse(channel, "Unknown config type '" + configType + "', must be one of " + ConfigConstants.CONFIG_NAMES);
+				return;
+			}
+		}
+		final boolean all = configTypes.length == 0;
+
+		// the caches of this module can be rebuilt without reading the index, only drop them.
+		// This only affects the REST API on this node, the security configuration is not reloaded
+		if (!request.paramAsBoolean("reload", true)) {
+			restApiPrivilegesEvaluator.clearCaches();
+			configResponseCache.clear();
+			successResponse(channel, "REST API caches flushed successfully.");
+			return;
+		}
 
 		client.execute(
 				ConfigUpdateAction.INSTANCE,
-				new ConfigUpdateRequest(new String[] { "config", "roles", "rolesmapping", "internalusers", "actiongroups" }),
+				new ConfigUpdateRequest(all ? ConfigConstants.CONFIG_NAMES.toArray(new String[0]) : configTypes),
 				new ActionListener<ConfigUpdateResponse>() {
 
 					@Override
 					public void onResponse(ConfigUpdateResponse response) {
-						sem.release();
 						if (logger.isDebugEnabled()) {
 							logger.debug("cache flushed successfully");
 						}
+						successResponse(channel, all ? "Cache flushed successfully." : "Cache flushed successfully for " + Arrays.toString(configTypes) + ".");
 					}
 
 					@Override
 					public void onFailure(Exception e) {
-						sem.release();
-						exception.add(e);
-						logger.error("Cannot flush cache due to {}", e.toString(), e);
+						logger.error("Cannot flush cache due to", e);
+						internalErrorResponse(channel, "Cannot flush cache due to "+ e.getMessage());
 					}
 
 				}
 		);
-
-		if (!sem.tryAcquire(30, TimeUnit.SECONDS)) {
-			logger.error("Cannot flush cache due to timeout");
-			return internalErrorResponse("Cannot flush cache due to timeout");
-		}
-
-		if (exception.size() > 0) {
-			logger.error("Cannot flush cache due to", exception.get(0));
-			return internalErrorResponse("Cannot flush cache due to "+ exception.get(0).getMessage());
-		}		
-		
-		return successResponse("Cache flushed successfully.", new String[0]);
 	}
 
 	@Override
-	protected Tuple<String[], RestResponse> handlePost(final RestRequest request, final Client client,
+	protected void handlePost(final RestChannel channel, final RestRequest request, final Client client,
 			final Settings.Builder additionalSettings) throws Throwable {
-		return notImplemented(Method.POST);
+		notImplemented(channel, Method.POST);
 	}
 
 	@Override
-	protected Tuple<String[], RestResponse> handleGet(final RestRequest request, final Client client,
+	protected void handleGet(final RestChannel channel, final RestRequest request, final Client client,
 			final Settings.Builder additionalSettings) throws Throwable {
-		return notImplemented(Method.GET);
+		notImplemented(channel, Method.GET);
 	}
 
 	@Override
-	protected Tuple<String[], RestResponse> handlePut(final RestRequest request, final Client client,
+	protected void handlePut(final RestChannel channel, final RestRequest request, final Client client,
 			final Settings.Builder additionalSettings) throws Throwable {
-		return notImplemented(Method.PUT);
+		notImplemented(channel, Method.PUT);
 	}
 
 	@Override
@@ -142,7 +146,8 @@ public class FlushCacheApiAction extends AbstractApiAction {
 
 	@Override
 	protected void consumeParameters(final RestRequest request) {
-		// not needed
+		request.param("types");
+		request.param("reload");
 	}
 
 }
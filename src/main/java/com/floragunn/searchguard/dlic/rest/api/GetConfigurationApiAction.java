@@ -20,15 +20,12 @@ import java.nio.file.Path;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.bytes.BytesReference;
-import org.elasticsearch.common.collect.Tuple;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestRequest;
 import org.elasticsearch.rest.RestRequest.Method;
-import org.elasticsearch.rest.RestResponse;
-import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.threadpool.ThreadPool;
 
 import com.floragunn.searchguard.auditlog.AuditLog;
@@ -50,8 +47,10 @@ public class GetConfigurationApiAction extends AbstractApiAction {
 	@Inject
 	public GetConfigurationApiAction(final Settings settings, final Path configPath, final RestController controller, final Client client,
 			final AdminDNs adminDNs, final IndexBaseConfigurationRepository cl, final ClusterService cs,
-            final PrincipalExtractor principalExtractor, final PrivilegesEvaluator evaluator, ThreadPool threadPool, AuditLog auditLog) {
-		super(settings, configPath, controller, client, adminDNs, cl, cs, principalExtractor, evaluator, threadPool, auditLog);
+            final PrincipalExtractor principalExtractor, final PrivilegesEvaluator evaluator, ThreadPool threadPool, AuditLog auditLog, final RestApiThreadPool restApiThreadPool,
+			final ConfigWriteCoalescer configWriteCoalescer, final ConfigResponseCache configResponseCache,
+			final RestApiPrivilegesEvaluator restApiPrivilegesEvaluator) {
+		super(settings, configPath, controller, client, adminDNs, cl, cs, principalExtractor, evaluator, threadPool, auditLog, restApiThreadPool, configWriteCoalescer, configResponseCache, restApiPrivilegesEvaluator);
 		controller.registerHandler(Method.GET, "/_searchguard/api/configuration/{configname}", this);
 	}
 
@@ -61,22 +60,20 @@ public class GetConfigurationApiAction extends AbstractApiAction {
 	}
 
 	@Override
-	protected Tuple<String[], RestResponse> handleGet(RestRequest request, Client client,
+	protected void handleGet(final RestChannel channel, RestRequest request, Client client,
 			final Settings.Builder additionalSettingsBuilder) throws Throwable {
 		
 		final String configname = request.param("configname");
 
 		if (configname == null || configname.length() == 0
 				|| !ConfigConstants.CONFIG_NAMES.contains(configname)) {
-			return badRequestResponse("No configuration name given, must be one of "
+			badRequestResponse(channel, "No configuration name given, must be one of "
 					+ Joiner.on(",").join(ConfigConstants.CONFIG_NAMES));
+			return;
 
 		}
 
-		final Settings config = loadAsSettings(configname);
-		
-		return new Tuple<String[], RestResponse>(new String[0],
-				new BytesRestResponse(RestStatus.OK, convertToJson(config)));
+		sendConfiguration(channel, request, configname);
 	}
 
 	@Override
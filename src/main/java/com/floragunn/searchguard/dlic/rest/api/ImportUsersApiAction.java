@@ -0,0 +1,460 @@
+/*
+ * Copyright 2018 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.dlic.rest.api;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import com.floragunn.searchguard.auditlog.AuditLog;
+import com.floragunn.searchguard.configuration.AdminDNs;
+import com.floragunn.searchguard.configuration.IndexBaseConfigurationRepository;
+import com.floragunn.searchguard.configuration.PrivilegesEvaluator;
+import com.floragunn.searchguard.dlic.rest.api.ConfigWriteCoalescer.Mutation;
+import com.floragunn.searchguard.dlic.rest.api.ConfigWriteCoalescer.Outcome;
+import com.floragunn.searchguard.dlic.rest.api.PasswordHasher.BatchResult;
+import com.floragunn.searchguard.dlic.rest.support.Utils;
+import com.floragunn.searchguard.dlic.rest.validation.AbstractConfigurationValidator;
+import com.floragunn.searchguard.dlic.rest.validation.NoOpValidator;
+import com.floragunn.searchguard.dlic.rest.validation.ValidationLimits;
+import com.floragunn.searchguard.ssl.transport.PrincipalExtractor;
+import com.floragunn.searchguard.support.ConfigConstants;
+
+/**
+ * Creates or updates many internal users in one request. The body is newline
+ * delimited JSON with one user per line, in the format of the internal users
+ * configuration, e.g. <code>{"kirk":{"password":"kirk","roles":["captains"]}}</code>.
+ * Users may have a plaintext password or a hash.
+ * <p>
+ * Every user is validated like a single PUT. Passwords are hashed on all
+ * threads of the password hashing pool, afterwards the internal users
+ * configuration is written and reloaded once.
+ * <p>
+ * The progress of the last import is available with GET. It is only kept on the
+ * node which ran the import, so it must be requested from the same node. The
+ * endpoint is not below <code>/_searchguard/api/internalusers</code> so it can
+ * not be confused with a user of the same name.
+ */
+public class ImportUsersApiAction extends AbstractApiAction {
+
+	private final static ValidationLimits IMPORT_LIMITS = new ValidationLimits(new ByteSizeValue(50, ByteSizeUnit.MB).getBytes(),
+			ValidationLimits.DEFAULT.getMaxKeys(), ValidationLimits.DEFAULT.getMaxDepth());
+
+	private final InternalUsersApiAction internalUsersApiAction;
+	private final PasswordHasher passwordHasher;
+	private final AtomicReference<ImportProgress> lastImport = new AtomicReference<>();
+
+	protected ImportUsersApiAction(final Settings settings, final Path configPath, final RestController controller, final Client client,
+			final AdminDNs adminDNs, final IndexBaseConfigurationRepository cl, final ClusterService cs,
+			final PrincipalExtractor principalExtractor, final PrivilegesEvaluator evaluator, ThreadPool threadPool, AuditLog auditLog, final RestApiThreadPool restApiThreadPool,
+			final ConfigWriteCoalescer configWriteCoalescer, final ConfigResponseCache configResponseCache,
+			final RestApiPrivilegesEvaluator restApiPrivilegesEvaluator, final InternalUsersApiAction internalUsersApiAction,
+			final PasswordHasher passwordHasher) {
+		super(settings, configPath, controller, client, adminDNs, cl, cs, principalExtractor, evaluator, threadPool, auditLog, restApiThreadPool, configWriteCoalescer, configResponseCache, restApiPrivilegesEvaluator);
+		this.internalUsersApiAction = internalUsersApiAction;
+		this.passwordHasher = passwordHasher;
+		controller.registerHandler(Method.POST, "/_searchguard/api/_import/internalusers", this);
+		controller.registerHandler(Method.GET, "/_searchguard/api/_import/internalusers", this);
+	}
+
+	@Override
+	protected Endpoint getEndpoint() {
+		return Endpoint.IMPORT;
+	}
+
+	@Override
+	protected ValidationLimits defaultValidationLimits() {
+		// many users in one body, each of them is limited on its own
+		return IMPORT_LIMITS;
+	}
+
+	@Override
+	public boolean supportsContentStream() {
+		// accept application/x-ndjson
+		return true;
+	}
+
+	@Override
+	protected void handleApiRequest(final RestChannel channel, final RestRequest request, final Client client)
+			throws Throwable {
+		// the body is not a single JSON document, every user is validated on its own
+		if (request.method() == Method.GET) {
+			handleGet(channel, request, client, null);
+		} else {
+			handlePost(channel, request, client, null);
+		}
+	}
+
+	@Override
+	protected void handleGet(final RestChannel channel, final RestRequest request, final Client client,
+			final Settings.Builder additionalSettings) throws Throwable {
+		final ImportProgress progress = lastImport.get();
+		if (progress == null) {
+			notFound(channel, "No import has been started on this node.");
+			return;
+		}
+		final XContentBuilder builder = XContentFactory.jsonBuilder();
+		progress.toXContent(builder);
+		channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+	}
+
+	@Override
+	protected void handlePost(final RestChannel channel, final RestRequest request, final Client client,
+			final Settings.Builder additionalSettings) throws Throwable {
+
+		if (!request.hasContent()) {
+			badRequestResponse(channel, "Request body required for this action.");
+			return;
+		}
+
+		// importing users is creating and updating them
+		final String authError = checkCallerPermissions(request, Endpoint.INTERNALUSERS, Method.PUT);
+		if (authError != null) {
+			forbidden(channel, "No permission to access REST API: " + authError);
+			return;
+		}
+
+		final List<ImportItem> items;
+		try {
+			items = parse(request.content());
+		} catch (final Exception e) {
+			badRequestResponse(channel, e.getMessage());
+			return;
+		}
+
+		if (items.isEmpty()) {
+			badRequestResponse(channel, "No users specified.");
+			return;
+		}
+
+		final ImportProgress progress = new ImportProgress(items.size());
+		lastImport.set(progress);
+
+		// validate all users first, collect the passwords of the valid ones
+		final List<ImportItem> toHash = new ArrayList<>();
+		final List<char[]> passwords = new ArrayList<>();
+		for (final ImportItem item : items) {
+			final AbstractConfigurationValidator validator = internalUsersApiAction.getValidator(Method.PUT, item.source);
+			if (!validator.validateSettings(internalUsersApiAction.validationLimits)) {
+				item.error = XContentHelper.convertToMap(validator.errorsAsXContent().bytes(), false, XContentType.JSON).v2();
+				item.fail(errorStatus(validator), String.valueOf(item.error.get("reason")));
+				progress.failed.incrementAndGet();
+				continue;
+			}
+			item.settings = validator.settingsBuilder();
+			item.source = null;
+
+			final String password = item.settings.get("password");
+			if (password != null && password.length() > 0) {
+				item.settings.remove("password");
+				toHash.add(item);
+				passwords.add(password.toCharArray());
+			}
+		}
+
+		progress.state = "hashing";
+		passwordHasher.hashBatch(passwords, progress.hashed::incrementAndGet, new ActionListener<BatchResult>() {
+
+			@Override
+			public void onResponse(final BatchResult result) {
+				for (int i = 0; i < toHash.size(); i++) {
+					final ImportItem item = toHash.get(i);
+					if (result.getFailure(i) != null) {
+						item.fail(RestStatus.BAD_REQUEST, "Cannot hash password: " + result.getFailure(i).getMessage());
+						item.settings = null;
+						progress.failed.incrementAndGet();
+					} else {
+						item.settings.put("hash", result.getHash(i));
+					}
+				}
+				write(channel, items, progress);
+			}
+
+			@Override
+			public void onFailure(final Exception e) {
+				progress.finish("failed");
+				if (e instanceof EsRejectedExecutionException) {
+					logger.warn("Rejected import of {} users due to {}", items.size(), e.getMessage());
+					try {
+						channel.sendResponse(new BytesRestResponse(channel, e));
+					} catch (final IOException ioe) {
+						internalErrorResponse(channel, "Cannot hash passwords due to " + e.getMessage());
+					}
+					return;
+				}
+				logger.error("Cannot hash passwords due to", e);
+				internalErrorResponse(channel, "Cannot hash passwords due to " + e.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * Apply all valid users as mutations of one write, the configuration is
+	 * reloaded once for all of them
+	 */
+	private void write(final RestChannel channel, final List<ImportItem> items, final ImportProgress progress) {
+		final List<Mutation> mutations = new ArrayList<>();
+		for (final ImportItem item : items) {
+			if (item.settings != null) {
+				item.mutationIndex = mutations.size();
+				mutations.add(internalUsersApiAction.putMutation(item.name, item.settings));
+				item.settings = null;
+			}
+		}
+
+		if (mutations.isEmpty()) {
+			progress.finish("done");
+			sendResponse(channel, items, progress);
+			return;
+		}
+
+		progress.state = "writing";
+		configWriteCoalescer.bulk(Collections.singletonMap(ConfigConstants.CONFIGNAME_INTERNAL_USERS, mutations),
+				new ActionListener<Map<String, List<Outcome>>>() {
+
+					@Override
+					public void onResponse(final Map<String, List<Outcome>> outcomes) {
+						final List<Outcome> userOutcomes = outcomes.get(ConfigConstants.CONFIGNAME_INTERNAL_USERS);
+						for (final ImportItem item : items) {
+							if (item.mutationIndex >= 0) {
+								final Outcome outcome = userOutcomes.get(item.mutationIndex);
+								item.status = outcome.getStatus();
+								item.message = outcome.getMessage();
+								if (item.status == RestStatus.CREATED) {
+									progress.created.incrementAndGet();
+								} else if (item.status == RestStatus.OK) {
+									progress.updated.incrementAndGet();
+								} else {
+									progress.failed.incrementAndGet();
+								}
+							}
+						}
+						progress.finish("done");
+						sendResponse(channel, items, progress);
+					}
+
+					@Override
+					public void onFailure(final Exception e) {
+						progress.finish("failed");
+						if (e instanceof EsRejectedExecutionException) {
+							logger.warn("Rejected writing imported users due to {}", e.getMessage());
+							try {
+								channel.sendResponse(new BytesRestResponse(channel, e));
+								return;
+							} catch (final IOException ioe) {
+								logger.error("Cannot send rejection", ioe);
+							}
+						}
+						logger.error("Cannot import users due to", e);
+						internalErrorResponse(channel, "Error " + e.getMessage());
+					}
+				});
+	}
+
+	private void sendResponse(final RestChannel channel, final List<ImportItem> items, final ImportProgress progress) {
+		try {
+			final XContentBuilder builder = XContentFactory.jsonBuilder();
+			builder.startObject();
+			progress.fieldsToXContent(builder);
+			// successful users are only counted, a large import would produce a huge response otherwise
+			builder.startArray("errors");
+			for (final ImportItem item : items) {
+				if (item.status == null || item.status.getStatus() < 400) {
+					continue;
+				}
+				builder.startObject();
+				builder.field("name", item.name);
+				builder.field("line", item.line);
+				builder.field("status", item.status.name());
+				builder.field("message", item.message);
+				if (item.error != null) {
+					builder.field("error", item.error);
+				}
+				builder.endObject();
+			}
+			builder.endArray();
+			builder.endObject();
+			channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+		} catch (final IOException e) {
+			log.error("Cannot build response", e);
+			internalErrorResponse(channel, e.toString());
+		}
+	}
+
+	/**
+	 * Split the newline delimited body into users. A malformed line fails the
+	 * whole request.
+	 */
+	private static List<ImportItem> parse(final BytesReference content) throws IOException {
+
+		final List<ImportItem> items = new ArrayList<>();
+		final int length = content.length();
+		int lineNumber = 0;
+		int from = 0;
+
+		while (from < length) {
+			int to = from;
+			while (to < length && content.get(to) != '\n') {
+				to++;
+			}
+			final BytesReference line = content.slice(from, to - from);
+			from = to + 1;
+			lineNumber++;
+
+			if (Utils.isBlank(line)) {
+				continue;
+			}
+
+			items.add(parseLine(line, lineNumber));
+		}
+
+		return items;
+	}
+
+	private static ImportItem parseLine(final BytesReference line, final int lineNumber) throws IOException {
+		try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY, line, XContentType.JSON)) {
+			if (parser.nextToken() != XContentParser.Token.START_OBJECT || parser.nextToken() != XContentParser.Token.FIELD_NAME) {
+				throw new IllegalArgumentException("Malformed line " + lineNumber + ", expected an object with the user name as key");
+			}
+			final String name = parser.currentName();
+			if (name.isEmpty()) {
+				throw new IllegalArgumentException("Empty user name in line " + lineNumber);
+			}
+			if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+				throw new IllegalArgumentException("Malformed line " + lineNumber + ", expected an object for user '" + name + "'");
+			}
+			final XContentBuilder user = XContentFactory.jsonBuilder();
+			user.copyCurrentStructure(parser);
+			if (parser.nextToken() != XContentParser.Token.END_OBJECT || parser.nextToken() != null) {
+				throw new IllegalArgumentException("Malformed line " + lineNumber + ", expected exactly one user");
+			}
+			return new ImportItem(name, lineNumber, user.bytes());
+		} catch (final IllegalArgumentException e) {
+			throw e;
+		} catch (final Exception e) {
+			throw new IllegalArgumentException("Malformed line " + lineNumber + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	protected AbstractConfigurationValidator getValidator(Method method, BytesReference ref) {
+		return new NoOpValidator(method, ref);
+	}
+
+	@Override
+	protected String getResourceName() {
+		// not needed, operates on several users
+		return null;
+	}
+
+	@Override
+	protected String getConfigName() {
+		return ConfigConstants.CONFIGNAME_INTERNAL_USERS;
+	}
+
+	@Override
+	protected void consumeParameters(final RestRequest request) {
+		// not needed
+	}
+
+	private static final class ImportItem {
+
+		private final String name;
+		private final int line;
+		private BytesReference source;
+		private Settings.Builder settings;
+		private int mutationIndex = -1;
+		private RestStatus status;
+		private String message;
+		private Map<String, Object> error;
+
+		ImportItem(final String name, final int line, final BytesReference source) {
+			this.name = name;
+			this.line = line;
+			this.source = source;
+		}
+
+		void fail(final RestStatus status, final String message) {
+			this.status = status;
+			this.message = message;
+		}
+	}
+
+	private static final class ImportProgress {
+
+		private final long started = System.nanoTime();
+		private final int total;
+		private final AtomicInteger hashed = new AtomicInteger();
+		private final AtomicInteger created = new AtomicInteger();
+		private final AtomicInteger updated = new AtomicInteger();
+		private final AtomicInteger failed = new AtomicInteger();
+		private volatile String state = "validating";
+		private volatile long tookNanos = -1;
+
+		ImportProgress(final int total) {
+			this.total = total;
+		}
+
+		void finish(final String state) {
+			this.tookNanos = System.nanoTime() - started;
+			this.state = state;
+		}
+
+		void toXContent(final XContentBuilder builder) throws IOException {
+			builder.startObject();
+			fieldsToXContent(builder);
+			builder.endObject();
+		}
+
+		void fieldsToXContent(final XContentBuilder builder) throws IOException {
+			final long took = tookNanos >= 0 ? tookNanos : System.nanoTime() - started;
+			builder.field("state", state);
+			builder.field("total", total);
+			builder.field("hashed", hashed.get());
+			builder.field("created", created.get());
+			builder.field("updated", updated.get());
+			builder.field("failed", failed.get());
+			builder.field("took_millis", TimeValue.timeValueNanos(took).millis());
+		}
+	}
+}
@@ -14,31 +14,36 @@
 
 package com.floragunn.searchguard.dlic.rest.api;
 
+import java.io.IOException;
 import java.nio.file.Path;
-import java.security.SecureRandom;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.stream.Collectors;
 
-import org.bouncycastle.crypto.generators.OpenBSDBCrypt;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.bytes.BytesReference;
-import org.elasticsearch.common.collect.Tuple;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestRequest;
 import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.threadpool.ThreadPool;
-import org.elasticsearch.rest.RestResponse;
 
 import com.floragunn.searchguard.auditlog.AuditLog;
 import com.floragunn.searchguard.configuration.AdminDNs;
 import com.floragunn.searchguard.configuration.IndexBaseConfigurationRepository;
 import com.floragunn.searchguard.configuration.PrivilegesEvaluator;
+import com.floragunn.searchguard.dlic.rest.api.ConfigWriteCoalescer.Mutation;
+import com.floragunn.searchguard.dlic.rest.api.ConfigWriteCoalescer.Outcome;
+import com.floragunn.searchguard.dlic.rest.api.PasswordHasher.BatchResult;
 import com.floragunn.searchguard.dlic.rest.support.Utils;
 import com.floragunn.searchguard.dlic.rest.validation.AbstractConfigurationValidator;
 import com.floragunn.searchguard.dlic.rest.validation.InternalUsersValidator;
@@ -47,11 +52,16 @@ import com.floragunn.searchguard.support.ConfigConstants;
 
 public class InternalUsersApiAction extends AbstractApiAction {
 
+	private final PasswordHasher passwordHasher;
+
 	@Inject
 	public InternalUsersApiAction(final Settings settings, final Path configPath, final RestController controller, final Client client,
 			final AdminDNs adminDNs, final IndexBaseConfigurationRepository cl, final ClusterService cs,
-            final PrincipalExtractor principalExtractor, final PrivilegesEvaluator evaluator, ThreadPool threadPool, AuditLog auditLog) {
-		super(settings, configPath, controller, client, adminDNs, cl, cs, principalExtractor, evaluator, threadPool, auditLog);
+            final PrincipalExtractor principalExtractor, final PrivilegesEvaluator evaluator, ThreadPool threadPool, AuditLog auditLog, final RestApiThreadPool restApiThreadPool,
+			final ConfigWriteCoalescer configWriteCoalescer, final ConfigResponseCache configResponseCache,
+			final RestApiPrivilegesEvaluator restApiPrivilegesEvaluator, final PasswordHasher passwordHasher) {
+		super(settings, configPath, controller, client, adminDNs, cl, cs, principalExtractor, evaluator, threadPool, auditLog, restApiThreadPool, configWriteCoalescer, configResponseCache, restApiPrivilegesEvaluator);
+		this.passwordHasher = passwordHasher;
 
 		// legacy mapping for backwards compatibility
 		// TODO: remove in SG7
@@ -65,6 +75,8 @@ public class InternalUsersApiAction extends AbstractApiAction {
 		controller.registerHandler(Method.GET, "/_searchguard/api/internalusers/", this);
 		controller.registerHandler(Method.DELETE, "/_searchguard/api/internalusers/{name}", this);
 		controller.registerHandler(Method.PUT, "/_searchguard/api/internalusers/{name}", this);
+		controller.registerHandler(Method.PATCH, "/_searchguard/api/internalusers/", this);
+		controller.registerHandler(Method.PATCH, "/_searchguard/api/internalusers/{name}", this);
 
 	}
 
@@ -74,76 +86,164 @@ public class InternalUsersApiAction extends AbstractApiAction {
 	}
 	
 	@Override
-	protected Tuple<String[], RestResponse> handlePut(final RestRequest request, final Client client,
+	protected void handlePut(final RestChannel channel, final RestRequest request, final Client client,
 			final Settings.Builder additionalSettingsBuilder) throws Throwable {
 		
 		final String username = request.param("name");
 		
 		if (username == null || username.length() == 0) {
-			return badRequestResponse("No " + getResourceName() + " specified");
+			badRequestResponse(channel, "No " + getResourceName() + " specified");
+			return;
 		}
 
-		final Settings configurationSettings = loadAsSettings(getConfigName());
-				
-		// check if resource is writeable
-		Boolean readOnly = configurationSettings.getAsBoolean(username+ "." + ConfigConstants.CONFIGKEY_READONLY, Boolean.FALSE);
+		// fail fast before hashing, the check is repeated when the change is applied
+		Boolean readOnly = loadAsSettings(getConfigName()).getAsBoolean(username+ "." + ConfigConstants.CONFIGKEY_READONLY, Boolean.FALSE);
 		if (readOnly) {
-			return forbidden("Resource '"+ username +"' is read-only.");
+			forbidden(channel, "Resource '"+ username +"' is read-only.");
+			return;
 		}
 
-		// if password is set, it takes precedence over hash
-		String plainTextPassword = additionalSettingsBuilder.get("password");
-		if (plainTextPassword != null && plainTextPassword.length() > 0) {
-			additionalSettingsBuilder.remove("password");
-			additionalSettingsBuilder.put("hash", hash(plainTextPassword.toCharArray()));
+		final String plainTextPassword = additionalSettingsBuilder.get("password");
+		if (plainTextPassword == null || plainTextPassword.length() == 0) {
+			submitMutation(channel, request, client, getConfigName(), putMutation(username, additionalSettingsBuilder));
+			return;
 		}
-				
-		// check if user exists
-		final Settings.Builder internaluser = load(ConfigConstants.CONFIGNAME_INTERNAL_USERS);		
-		final Map<String, Object> config = Utils.convertJsonToxToStructuredMap(internaluser.build()); 
 
-		boolean userExisted = config.containsKey(username);
+		// hash on the hashing pool and continue there, this thread is free for the next request
+		additionalSettingsBuilder.remove("password");
+		passwordHasher.hashAsync(plainTextPassword.toCharArray(), new ActionListener<String>() {
 
-		// when updating an existing user password hash can be blank, which means no changes
-		
-		// sanity checks, hash is mandatory for newly created users
-		if(!userExisted && additionalSettingsBuilder.get("hash") == null) {
-			return badRequestResponse("Please specify either 'hash' or 'password' when creating a new internal user");		
-		}
+			@Override
+			public void onResponse(final String hash) {
+				additionalSettingsBuilder.put("hash", hash);
+				submitMutation(channel, request, client, getConfigName(), putMutation(username, additionalSettingsBuilder));
+			}
 
-		// for existing users, hash is optional
-		if(userExisted && additionalSettingsBuilder.get("hash") == null) {
-			// sanity check, this should usually not happen
-			@SuppressWarnings("unchecked")
-			Map<String, String> existingUserSettings = (Map<String, String>)config.get(username);
-			if (!existingUserSettings.containsKey("hash")) {
-				return internalErrorResponse("Existing user " + username+" has no password, and no new password or hash was specified");
+			@Override
+			public void onFailure(final Exception e) {
+				if (e instanceof EsRejectedExecutionException) {
+					logger.warn("Rejected hashing password of user {} due to {}", username, e.getMessage());
+					try {
+						channel.sendResponse(new BytesRestResponse(channel, e));
+					} catch (final IOException ioe) {
+						internalErrorResponse(channel, "Cannot hash password due to " + e.getMessage());
+					}
+					return;
+				}
+				logger.error("Cannot hash password due to", e);
+				internalErrorResponse(channel, "Cannot hash password due to " + e.getMessage());
 			}
-			additionalSettingsBuilder.put("hash", (String) existingUserSettings.get("hash"));
-		}
+		});
+	}
 
-		config.remove(username);
+	/**
+	 * Passwords are hashed on the hashing pool before the mutations are built,
+	 * e.g. for bulk requests and patches
+	 */
+	@Override
+	protected ResourcePreparer resourcePreparer() {
+		return new ResourcePreparer() {
 
-		// checks complete, create or update the user
-		config.put(username, Utils.convertJsonToxToStructuredMap(additionalSettingsBuilder.build()));
-		
-		save(client, request, ConfigConstants.CONFIGNAME_INTERNAL_USERS, Utils.convertStructuredMapToBytes(config));
+			@Override
+			public boolean needsPreparation(final Settings.Builder resource) {
+				return hasPassword(resource);
+			}
 
-		if (userExisted) {
-			return successResponse("'" + username + "' updated", ConfigConstants.CONFIGNAME_INTERNAL_USERS);
-		} else {
-			return createdResponse("'" + username + "' created", ConfigConstants.CONFIGNAME_INTERNAL_USERS);
-		}
+			@Override
+			public void prepare(final List<Settings.Builder> resources, final ActionListener<Exception[]> listener) {
+				final List<Settings.Builder> withPassword = new ArrayList<>();
+				final List<Integer> indexes = new ArrayList<>();
+				final List<char[]> passwords = new ArrayList<>();
+				for (int i = 0; i < resources.size(); i++) {
+					if (hasPassword(resources.get(i))) {
+						withPassword.add(resources.get(i));
+						indexes.add(i);
+						passwords.add(resources.get(i).get("password").toCharArray());
+					}
+				}
+
+				passwordHasher.hashBatch(passwords, () -> {}, new ActionListener<BatchResult>() {
+
+					@Override
+					public void onResponse(final BatchResult result) {
+						final Exception[] failures = new Exception[resources.size()];
+						for (int i = 0; i < withPassword.size(); i++) {
+							// if password is set, it takes precedence over hash
+							withPassword.get(i).remove("password");
+							if (result.getFailure(i) != null) {
+								failures[indexes.get(i)] = result.getFailure(i);
+							} else {
+								withPassword.get(i).put("hash", result.getHash(i));
+							}
+						}
+						listener.onResponse(failures);
+					}
 
+					@Override
+					public void onFailure(final Exception e) {
+						listener.onFailure(e);
+					}
+				});
+			}
+		};
+	}
+
+	private static boolean hasPassword(final Settings.Builder resource) {
+		final String plainTextPassword = resource.get("password");
+		return plainTextPassword != null && plainTextPassword.length() > 0;
 	}
 
-	public static String hash(final char[] clearTextPassword) {
-	    final byte[] salt = new byte[16];
-        new SecureRandom().nextBytes(salt);
-        final String hash = OpenBSDBCrypt.generate((Objects.requireNonNull(clearTextPassword)), salt, 12);
-        Arrays.fill(salt, (byte)0);
-        Arrays.fill(clearTextPassword, '\0');
-        return hash;
+	/**
+	 * A plaintext password must have been hashed already, bcrypt is never run
+	 * inside a mutation
+	 */
+	@Override
+	protected Mutation putMutation(final String username, final Settings.Builder additionalSettingsBuilder) {
+
+		if (hasPassword(additionalSettingsBuilder)) {
+			throw new IllegalStateException("Password of user " + username + " must be hashed before the change is submitted");
+		}
+
+		final Map<String, Object> user = Utils.convertJsonToxToStructuredMap(additionalSettingsBuilder.build());
+
+		return config -> {
+
+			// check if resource is writeable
+			if (isReadOnly(config, username)) {
+				return Outcome.unchanged(RestStatus.FORBIDDEN, "Resource '" + username + "' is read-only.");
+			}
+
+			// check if user exists
+			final boolean userExisted = config.containsKey(username);
+
+			// when updating an existing user password hash can be blank, which means no changes
+
+			// sanity checks, hash is mandatory for newly created users
+			if (!userExisted && user.get("hash") == null) {
+				return Outcome.unchanged(RestStatus.BAD_REQUEST, "Please specify either 'hash' or 'password' when creating a new internal user");
+			}
+
+			// for existing users, hash is optional
+			if (userExisted && user.get("hash") == null) {
+				// sanity check, this should usually not happen
+				@SuppressWarnings("unchecked")
+				Map<String, Object> existingUserSettings = (Map<String, Object>) config.get(username);
+				if (!existingUserSettings.containsKey("hash")) {
+					return Outcome.unchanged(RestStatus.INTERNAL_SERVER_ERROR,
+							"Existing user " + username + " has no password, and no new password or hash was specified");
+				}
+				user.put("hash", existingUserSettings.get("hash"));
+			}
+
+			// checks complete, create or update the user
+			config.put(username, user);
+
+			if (userExisted) {
+				return Outcome.modified(RestStatus.OK, "'" + username + "' updated");
+			} else {
+				return Outcome.modified(RestStatus.CREATED, "'" + username + "' created");
+			}
+		};
 	}
 
 	@Override
@@ -15,17 +15,12 @@ package com.floragunn.searchguard.dlic.rest.api;
 
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
 
-import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.bytes.BytesReference;
-import org.elasticsearch.common.collect.Tuple;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.settings.Settings.Builder;
 import org.elasticsearch.common.xcontent.ToXContent;
@@ -34,10 +29,10 @@ import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentHelper;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestRequest;
 import org.elasticsearch.rest.RestRequest.Method;
-import org.elasticsearch.rest.RestResponse;
 import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.threadpool.ThreadPool;
 
@@ -61,8 +56,10 @@ public class LicenseApiAction extends AbstractApiAction {
 	
 	protected LicenseApiAction(Settings settings, Path configPath, RestController controller, Client client, AdminDNs adminDNs,
 			IndexBaseConfigurationRepository cl, ClusterService cs, PrincipalExtractor principalExtractor, 
-			final PrivilegesEvaluator evaluator, ThreadPool threadPool, AuditLog auditLog) {
-		super(settings, configPath, controller, client, adminDNs, cl, cs, principalExtractor, evaluator, threadPool, auditLog);		
+			final PrivilegesEvaluator evaluator, ThreadPool threadPool, AuditLog auditLog, final RestApiThreadPool restApiThreadPool,
+			final ConfigWriteCoalescer configWriteCoalescer, final ConfigResponseCache configResponseCache,
+			final RestApiPrivilegesEvaluator restApiPrivilegesEvaluator) {
+		super(settings, configPath, controller, client, adminDNs, cl, cs, principalExtractor, evaluator, threadPool, auditLog, restApiThreadPool, configWriteCoalescer, configResponseCache, restApiPrivilegesEvaluator);		
 		controller.registerHandler(Method.DELETE, "/_searchguard/api/license", this);
 		controller.registerHandler(Method.GET, "/_searchguard/api/license", this);
 		controller.registerHandler(Method.PUT, "/_searchguard/api/license", this);
@@ -76,69 +73,44 @@ public class LicenseApiAction extends AbstractApiAction {
 	}
 
 	@Override
-	protected Tuple<String[], RestResponse> handleGet(RestRequest request, Client client, Builder additionalSettings) throws Throwable {
-		
-		final Semaphore sem = new Semaphore(0);
-		final List<Throwable> exception = new ArrayList<Throwable>(1);
-		final XContentBuilder builder = XContentFactory.jsonBuilder().prettyPrint();
+	protected void handleGet(final RestChannel channel, RestRequest request, Client client, Builder additionalSettings) throws Throwable {
 		
 		client.execute(LicenseInfoAction.INSTANCE, new LicenseInfoRequest(), new ActionListener<LicenseInfoResponse>() {
 
 			@Override
 			public void onFailure(final Exception e) {
-				try {
-					exception.add(e);
-					logger.error("Cannot fetch license information due to", e);							
-				} finally {
-					sem.release();
-				}
+				logger.error("Unable to fetch license due to", e);
+				internalErrorResponse(channel, "Unable to fetch license: " + e.getMessage());
 			}
 
 			@Override
-			public void onResponse(final LicenseInfoResponse ur) {				
-				try {					
+			public void onResponse(final LicenseInfoResponse ur) {
+				try {
+					final XContentBuilder builder = XContentFactory.jsonBuilder().prettyPrint();
 		            builder.startObject();
 		            ur.toXContent(builder, ToXContent.EMPTY_PARAMS);
 		            builder.endObject();
 					if (log.isDebugEnabled()) {
 						log.debug("Successfully fetched license " + ur.toString());
-					}					
+					}
+					channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
 				} catch (IOException e) {
-					exception.add(e);
-					logger.error("Cannot fetch convert license to XContent due to", e);		
-				} finally {
-					sem.release();
+					logger.error("Cannot fetch convert license to XContent due to", e);
+					internalErrorResponse(channel, "Unable to fetch license: " + e.getMessage());
 				}
 			}
 		});
-		
-		try {
-			if (!sem.tryAcquire(2, TimeUnit.MINUTES)) {
-				logger.error("Cannot fetch config due to timeout");
-				throw new ElasticsearchException("Timeout fetching license.");
-			}
-		} catch (final InterruptedException e) {
-			Thread.currentThread().interrupt();
-		}
-
-		if (exception.size() != 0) {
-		    request.params().clear();
-		    logger.error("Unable to fetch license due to", exception.get(0));
-		    return internalErrorResponse("Unable to fetch license: " + exception.get(0).getMessage());
-		}
-			
-		return new Tuple<String[], RestResponse>(new String[0],
-				new BytesRestResponse(RestStatus.OK, builder));
 	}
 	
 	@Override
-	protected Tuple<String[], RestResponse> handlePut(final RestRequest request, final Client client,
+	protected void handlePut(final RestChannel channel, final RestRequest request, final Client client,
 			final Settings.Builder licenseBuilder) throws Throwable {
 		
 		String licenseString = licenseBuilder.get("sg_license");
 		
 		if (licenseString == null || licenseString.length() == 0) {
-			return badRequestResponse("License must not be null.");
+			badRequestResponse(channel, "License must not be null.");
+			return;
 		}
 		
 		// try to decode the license String as base 64, armored PGP encoded String
@@ -148,14 +120,16 @@ public class LicenseApiAction extends AbstractApiAction {
 			plaintextLicense = LicenseHelper.validateLicense(licenseString);					
 		} catch (Exception e) {
 			log.error("Could not decode license {} due to", licenseString, e);
-			return badRequestResponse("License could not be decoded due to: " + e.getMessage());
+			badRequestResponse(channel, "License could not be decoded due to: " + e.getMessage());
+			return;
 		}
 		
 		SearchGuardLicense license = new SearchGuardLicense(XContentHelper.convertToMap(XContentType.JSON.xContent(), plaintextLicense, true), cs);
 		
 		// check if license is valid at all, honor unsupported switch in es.yml 
 		if (!license.isValid() && !acceptInvalidLicense) {
-			return badRequestResponse("License invalid due to: " + String.join(",", license.getMsgs()));
+			badRequestResponse(channel, "License invalid due to: " + String.join(",", license.getMsgs()));
+			return;
 		}
 				
 		// load existing configuration into new map
@@ -166,24 +140,29 @@ public class LicenseApiAction extends AbstractApiAction {
 		}
 		
 		// license already present?		
-		boolean licenseExists = existing.get(CONFIG_LICENSE_KEY) != null;
+		final boolean licenseExists = existing.get(CONFIG_LICENSE_KEY) != null;
 		
 		// license is valid, overwrite old value
 		existing.put(CONFIG_LICENSE_KEY, licenseString);
 		
-		save(client, request, getConfigName(), existing);
-		if (licenseExists) {
-			return successResponse("License updated.", getConfigName());
-		} else {
-			// fallback, should not happen since we always have at least a trial license
-			log.warn("License created via REST API.");
-			return createdResponse("License created.", getConfigName());
-		}
+		saveAndUpdateConfiguration(client, request, getConfigName(), existing, new OnSucessActionListener<IndexResponse>(channel) {
+
+			@Override
+			public void onResponse(IndexResponse response) {
+				if (licenseExists) {
+					successResponse(channel, "License updated.");
+				} else {
+					// fallback, should not happen since we always have at least a trial license
+					log.warn("License created via REST API.");
+					createdResponse(channel, "License created.");
+				}
+			}
+		});
 	}
 
-	protected Tuple<String[], RestResponse> handlePost(final RestRequest request, final Client client,
+	protected void handlePost(final RestChannel channel, final RestRequest request, final Client client,
 			final Settings.Builder additionalSettings) throws Throwable {
-		return notImplemented(Method.POST);
+		notImplemented(channel, Method.POST);
 	}
 
 	@Override
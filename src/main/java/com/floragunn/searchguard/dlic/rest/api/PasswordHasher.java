@@ -0,0 +1,331 @@
+/*
+ * Copyright 2018 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.dlic.rest.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bouncycastle.crypto.generators.OpenBSDBCrypt;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.EsThreadPoolExecutor;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import com.floragunn.searchguard.configuration.IndexBaseConfigurationRepository;
+import com.floragunn.searchguard.support.ConfigConstants;
+
+/**
+ * Computes bcrypt hashes of internal user passwords on a bounded executor of
+ * its own. A single hash takes a few hundred milliseconds of CPU, so it must
+ * neither block the REST API pool nor the HTTP workers. One instance is shared
+ * by all handlers of a node.
+ */
+public class PasswordHasher implements ToXContentObject, Closeable {
+
+	public final static String THREAD_POOL_NAME = "searchguard_password_hashing";
+
+	public final static String SEARCHGUARD_RESTAPI_PASSWORD_HASHING_THREAD_POOL_SIZE = "searchguard.restapi.password_hashing.thread_pool.size";
+	public final static String SEARCHGUARD_RESTAPI_PASSWORD_HASHING_THREAD_POOL_QUEUE_SIZE = "searchguard.restapi.password_hashing.thread_pool.queue_size";
+	public final static String SEARCHGUARD_RESTAPI_PASSWORD_HASHING_COST = "searchguard.restapi.password_hashing.cost";
+	public final static String SEARCHGUARD_RESTAPI_PASSWORD_HASHING_CALIBRATION_TARGET = "searchguard.restapi.password_hashing.calibration_target";
+
+	final static int DEFAULT_COST = 12;
+	final static int MIN_COST = 4;
+	final static int MAX_COST = 31;
+
+	// cost used to measure this node, cheap enough to be run on startup
+	private final static int CALIBRATION_COST = 8;
+
+	// thread safe, seeded from the OS on first use and reused for all salts
+	private final static SecureRandom RANDOM = new SecureRandom();
+
+	protected final Logger log = LogManager.getLogger(this.getClass());
+
+	private final EsThreadPoolExecutor executor;
+	private final int size;
+	private final int queueSize;
+	private final int cost;
+	private final boolean calibrated;
+	private volatile int outdatedHashes;
+	private final AtomicLong hashed = new AtomicLong();
+	private final AtomicLong hashingTimeNanos = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	public PasswordHasher(final Settings settings, final ThreadPool threadPool, final IndexBaseConfigurationRepository cl) {
+		this.size = settings.getAsInt(SEARCHGUARD_RESTAPI_PASSWORD_HASHING_THREAD_POOL_SIZE,
+				Math.max(1, EsExecutors.numberOfProcessors(settings) / 2));
+		this.queueSize = settings.getAsInt(SEARCHGUARD_RESTAPI_PASSWORD_HASHING_THREAD_POOL_QUEUE_SIZE, 100);
+
+		this.executor = EsExecutors.newFixed(THREAD_POOL_NAME, size, queueSize,
+				EsExecutors.daemonThreadFactory(settings, THREAD_POOL_NAME), threadPool.getThreadContext());
+
+		final TimeValue calibrationTarget = settings.getAsTime(SEARCHGUARD_RESTAPI_PASSWORD_HASHING_CALIBRATION_TARGET, null);
+		this.calibrated = calibrationTarget != null;
+		this.cost = calibrated ? calibrate(calibrationTarget) : parseCost(settings.getAsInt(SEARCHGUARD_RESTAPI_PASSWORD_HASHING_COST, DEFAULT_COST));
+
+		// stored hashes cannot be rehashed without the password, track them until they are replaced
+		cl.subscribeOnChange(ConfigConstants.CONFIGNAME_INTERNAL_USERS, this::countOutdatedHashes);
+
+		if (log.isDebugEnabled()) {
+			log.debug("Password hashing thread pool initialized with {} threads and queue size {}, bcrypt cost {}", size, queueSize, cost);
+		}
+	}
+
+	private int parseCost(final int configured) {
+		if (configured < MIN_COST || configured > MAX_COST) {
+			log.error("bcrypt cost {} out of range [{}, {}], using {}", configured, MIN_COST, MAX_COST, DEFAULT_COST);
+			return DEFAULT_COST;
+		}
+		return configured;
+	}
+
+	/**
+	 * Every increment of the cost doubles the hashing time. Measure a cheap
+	 * cost and pick the highest cost which is expected to stay within the
+	 * target on this hardware.
+	 */
+	private int calibrate(final TimeValue target) {
+		final char[] password = "calibration".toCharArray();
+		// first run warms up the JIT, the fastest of the others is least disturbed
+		generate(password.clone(), CALIBRATION_COST);
+		long nanos = Long.MAX_VALUE;
+		for (int i = 0; i < 3; i++) {
+			final long start = System.nanoTime();
+			generate(password.clone(), CALIBRATION_COST);
+			nanos = Math.min(nanos, System.nanoTime() - start);
+		}
+
+		int calibrated = MIN_COST;
+		for (int candidate = MIN_COST + 1; candidate <= MAX_COST; candidate++) {
+			final int shift = candidate - CALIBRATION_COST;
+			final double expected = shift >= 0 ? (double) nanos * (1L << shift) : (double) nanos / (1L << -shift);
+			if (expected > target.nanos()) {
+				break;
+			}
+			calibrated = candidate;
+		}
+
+		log.info("bcrypt cost {} calibrated for a target of {} (cost {} took {})", calibrated, target, CALIBRATION_COST,
+				TimeValue.timeValueNanos(nanos));
+		if (calibrated < DEFAULT_COST) {
+			log.warn("Calibrated bcrypt cost {} is below the default of {}, consider a higher calibration target", calibrated, DEFAULT_COST);
+		}
+		return calibrated;
+	}
+
+	private void countOutdatedHashes(final Settings internalUsers) {
+		int outdated = 0;
+		for (final String username : internalUsers.names()) {
+			if (isOutdated(internalUsers.get(username + ".hash"))) {
+				outdated++;
+			}
+		}
+		this.outdatedHashes = outdated;
+		if (outdated > 0) {
+			log.info("{} internal users have a password hash with a cost other than {}, they are rehashed when their password is set again",
+					outdated, cost);
+		}
+	}
+
+	/**
+	 * @return true if the hash is a bcrypt hash with a cost other than the
+	 *         configured one
+	 */
+	boolean isOutdated(final String hash) {
+		// $2y$12$...
+		if (hash == null || hash.length() < 7 || hash.charAt(0) != '$' || hash.charAt(3) != '$' || hash.charAt(6) != '$') {
+			return false;
+		}
+		try {
+			return Integer.parseInt(hash.substring(4, 6)) != cost;
+		} catch (final NumberFormatException e) {
+			return false;
+		}
+	}
+
+	public int getCost() {
+		return cost;
+	}
+
+	/**
+	 * Hash the password on the hashing pool. The listener is called on that
+	 * pool, in the thread context of the caller. The password is cleared
+	 * afterwards.
+	 * <p>
+	 * If the queue is full the listener fails with an
+	 * {@link EsRejectedExecutionException}, which maps to HTTP status 429.
+	 */
+	public void hashAsync(final char[] clearTextPassword, final ActionListener<String> listener) {
+		Objects.requireNonNull(clearTextPassword);
+		try {
+			executor.execute(() -> {
+				final String hash;
+				try {
+					hash = hash(clearTextPassword);
+				} catch (final Exception e) {
+					listener.onFailure(e);
+					return;
+				}
+				listener.onResponse(hash);
+			});
+		} catch (final EsRejectedExecutionException e) {
+			rejected.incrementAndGet();
+			Arrays.fill(clearTextPassword, '\0');
+			listener.onFailure(e);
+		}
+	}
+
+	/**
+	 * Hash many passwords on all threads of the hashing pool. Only one task per
+	 * thread is queued, the tasks take the next password until all are done,
+	 * so a large batch neither floods the queue nor leaves a thread idle while
+	 * others still have work. The listener is called once, on the thread which
+	 * hashed the last password. All passwords are cleared afterwards.
+	 *
+	 * @param onHashed
+	 *            called after each password, e.g. to report progress
+	 */
+	public void hashBatch(final List<char[]> clearTextPasswords, final Runnable onHashed, final ActionListener<BatchResult> listener) {
+		final BatchResult result = new BatchResult(clearTextPasswords.size());
+		if (clearTextPasswords.isEmpty()) {
+			listener.onResponse(result);
+			return;
+		}
+
+		final AtomicInteger next = new AtomicInteger();
+		final int workers = Math.min(size, clearTextPasswords.size());
+		final AtomicInteger running = new AtomicInteger(workers);
+
+		final Runnable worker = () -> {
+			for (int i = next.getAndIncrement(); i < clearTextPasswords.size(); i = next.getAndIncrement()) {
+				try {
+					result.hashes[i] = hash(clearTextPasswords.get(i));
+				} catch (final Exception e) {
+					result.failures[i] = e;
+				}
+				onHashed.run();
+			}
+			if (running.decrementAndGet() == 0) {
+				listener.onResponse(result);
+			}
+		};
+
+		int submitted = 0;
+		for (int i = 0; i < workers; i++) {
+			try {
+				executor.execute(worker);
+				submitted++;
+			} catch (final EsRejectedExecutionException e) {
+				rejected.incrementAndGet();
+				// the workers already submitted take over the share of this one
+				if (running.decrementAndGet() == 0) {
+					if (submitted == 0) {
+						clearTextPasswords.forEach(password -> Arrays.fill(password, '\0'));
+						listener.onFailure(e);
+					} else {
+						listener.onResponse(result);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hash the password on the calling thread, for callers which already run
+	 * off the HTTP workers. The password is cleared afterwards.
+	 */
+	public String hash(final char[] clearTextPassword) {
+		final long start = System.nanoTime();
+		final String hash = generate(clearTextPassword, cost);
+		hashingTimeNanos.addAndGet(System.nanoTime() - start);
+		hashed.incrementAndGet();
+		return hash;
+	}
+
+	static String generate(final char[] clearTextPassword, final int cost) {
+		final byte[] salt = new byte[16];
+		RANDOM.nextBytes(salt);
+		try {
+			return OpenBSDBCrypt.generate(Objects.requireNonNull(clearTextPassword), salt, cost);
+		} finally {
+			Arrays.fill(salt, (byte) 0);
+			Arrays.fill(clearTextPassword, '\0');
+		}
+	}
+
+	/**
+	 * Hashes of a batch, in the order of the passwords. A password which could
+	 * not be hashed has a failure instead.
+	 */
+	public static final class BatchResult {
+
+		private final String[] hashes;
+		private final Exception[] failures;
+
+		private BatchResult(final int size) {
+			this.hashes = new String[size];
+			this.failures = new Exception[size];
+		}
+
+		public String getHash(final int index) {
+			return hashes[index];
+		}
+
+		public Exception getFailure(final int index) {
+			return failures[index];
+		}
+	}
+
+	/**
+	 * Stop accepting passwords and wait a bit for the running hashes to finish
+	 */
+	@Override
+	public void close() {
+		ThreadPool.terminate(executor, 10, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+		final long count = hashed.get();
+		builder.startObject();
+		builder.field("name", THREAD_POOL_NAME);
+		builder.field("threads", size);
+		builder.field("queue_size", queueSize);
+		builder.field("cost", cost);
+		builder.field("calibrated", calibrated);
+		builder.field("outdated_hashes", outdatedHashes);
+		builder.field("active", executor.getActiveCount());
+		builder.field("queue", executor.getQueue().size());
+		builder.field("rejected", rejected.get());
+		builder.field("hashed", count);
+		builder.field("avg_millis", count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(hashingTimeNanos.get() / count));
+		builder.endObject();
+		return builder;
+	}
+}
@@ -16,7 +16,6 @@ package com.floragunn.searchguard.dlic.rest.api;
 
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -26,6 +25,7 @@ import org.elasticsearch.client.node.NodeClient;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.rest.BaseRestHandler;
 import org.elasticsearch.rest.BytesRestResponse;
@@ -51,16 +51,17 @@ public class PermissionsInfoAction extends BaseRestHandler {
 
 	private final RestApiPrivilegesEvaluator restApiPrivilegesEvaluator;
 	private final ThreadPool threadPool;
-	private final PrivilegesEvaluator privilegesEvaluator;
+	private final RestApiThreadPool restApiThreadPool;
 	
 	protected PermissionsInfoAction(final Settings settings, final Path configPath, final RestController controller, final Client client,
 			final AdminDNs adminDNs, final IndexBaseConfigurationRepository cl, final ClusterService cs,
-			final PrincipalExtractor principalExtractor, final PrivilegesEvaluator privilegesEvaluator, ThreadPool threadPool, AuditLog auditLog) {
+			final PrincipalExtractor principalExtractor, final PrivilegesEvaluator privilegesEvaluator, ThreadPool threadPool, AuditLog auditLog, final RestApiThreadPool restApiThreadPool,
+			final RestApiPrivilegesEvaluator restApiPrivilegesEvaluator) {
 		super(settings);
 		controller.registerHandler(Method.GET, "/_searchguard/api/permissionsinfo", this);
 		this.threadPool = threadPool;
-		this.privilegesEvaluator = privilegesEvaluator;
-		this.restApiPrivilegesEvaluator = new RestApiPrivilegesEvaluator(settings, adminDNs, privilegesEvaluator, principalExtractor, configPath, threadPool);
+		this.restApiThreadPool = restApiThreadPool;
+		this.restApiPrivilegesEvaluator = restApiPrivilegesEvaluator;
 	}
 
 	@Override
@@ -84,6 +85,20 @@ public class PermissionsInfoAction extends BaseRestHandler {
 
             @Override
             public void accept(RestChannel channel) throws Exception {
+                try {
+                    restApiThreadPool.execute(() -> {
+                        try {
+                            sendPermissionsInfo(channel);
+                        } catch (final IOException e) {
+                            channel.sendResponse(new BytesRestResponse(RestStatus.INTERNAL_SERVER_ERROR, e.toString()));
+                        }
+                    });
+                } catch (final EsRejectedExecutionException e) {
+                    channel.sendResponse(new BytesRestResponse(channel, e));
+                }
+            }
+
+            private void sendPermissionsInfo(RestChannel channel) throws IOException {
                 XContentBuilder builder = channel.newBuilder(); //NOSONAR
                 BytesRestResponse response = null;
                 
@@ -92,16 +107,16 @@ public class PermissionsInfoAction extends BaseRestHandler {
             		final User user = (User) threadPool.getThreadContext().getTransient(ConfigConstants.SG_USER);
             		final TransportAddress remoteAddress = (TransportAddress) threadPool.getThreadContext()
             				.getTransient(ConfigConstants.SG_REMOTE_ADDRESS);
-            		Set<String> userRoles = privilegesEvaluator.mapSgRoles(user, remoteAddress);
+            		Set<String> userRoles = restApiPrivilegesEvaluator.mapSgRoles(user, remoteAddress);
             		Boolean hasApiAccess = restApiPrivilegesEvaluator.currentUserHasRestApiAccess(userRoles);
-            		Map<Endpoint, List<Method>> disabledEndpoints = restApiPrivilegesEvaluator.getDisabledEndpointsForCurrentUser(user.getName(), userRoles);
+            		Map<Endpoint, Set<Method>> disabledEndpoints = restApiPrivilegesEvaluator.getDisabledEndpointsForCurrentUser(user.getName(), userRoles);
 
                     builder.startObject();
                     builder.field("user", user);
                     builder.field("user_name", user==null?null:user.getName()); //NOSONAR
                     builder.field("has_api_access", hasApiAccess);
                     builder.startObject("disabled_endpoints");
-                    for(Entry<Endpoint, List<Method>>  entry : disabledEndpoints.entrySet()) {
+                    for(Entry<Endpoint, Set<Method>>  entry : disabledEndpoints.entrySet()) {
                     	builder.field(entry.getKey().name(), entry.getValue());
                     }
                     builder.endObject();
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.dlic.rest.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.regex.Regex;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+
+import com.floragunn.searchguard.dlic.rest.support.Utils;
+
+/**
+ * Resources of one version of a configuration, indexed by name. The
+ * configuration is converted once when the index is built, the JSON of a
+ * single resource is rendered on first access and kept for subsequent ones.
+ * <p>
+ * A new version of the configuration is a new {@link Settings} instance, so
+ * the instance the index was built from identifies its version.
+ */
+final class ResourceIndex {
+
+	private final Settings settings;
+	private final Map<String, Object> resources;
+	private final Map<String, BytesReference> rendered = new ConcurrentHashMap<>();
+	// sorted on first use, most requests only access single resources
+	private volatile String[] sortedNames;
+
+	private ResourceIndex(final Settings settings) {
+		this.settings = settings;
+		this.resources = settings == null ? Collections.emptyMap() : Utils.convertJsonToxToStructuredMap(settings);
+	}
+
+	/**
+	 * @return the given index if it has been built from this configuration, a
+	 *         new one otherwise
+	 */
+	static ResourceIndex forSettings(final ResourceIndex current, final Settings settings) {
+		if (current != null && current.settings == settings) {
+			return current;
+		}
+		return new ResourceIndex(settings);
+	}
+
+	/**
+	 * @return the names of all resources matching the filter, in ascending order.
+	 *         A filter without wildcards matches names starting with it.
+	 */
+	List<String> names(final String filter) {
+		final List<String> names = Arrays.asList(sortedNames());
+
+		if (filter == null || filter.isEmpty()) {
+			return names;
+		}
+
+		if (!Regex.isSimpleMatchPattern(filter)) {
+			// prefix, all matches are adjacent in the sorted names
+			int from = Collections.binarySearch(names, filter);
+			if (from < 0) {
+				from = -from - 1;
+			}
+			int to = from;
+			while (to < names.size() && names.get(to).startsWith(filter)) {
+				to++;
+			}
+			return names.subList(from, to);
+		}
+
+		final List<String> matching = new ArrayList<>();
+		for (final String name : names) {
+			if (Regex.simpleMatch(filter, name)) {
+				matching.add(name);
+			}
+		}
+		return matching;
+	}
+
+	/**
+	 * @return the structured resource or null if there is no such resource
+	 */
+	Object resource(final String name) {
+		return resources.get(name);
+	}
+
+	private String[] sortedNames() {
+		String[] names = sortedNames;
+		if (names == null) {
+			names = resources.keySet().toArray(new String[0]);
+			Arrays.sort(names);
+			sortedNames = names;
+		}
+		return names;
+	}
+
+	/**
+	 * @return <code>{"name": {...}}</code> or null if there is no such resource
+	 */
+	BytesReference get(final String name) {
+		if (!resources.containsKey(name)) {
+			return null;
+		}
+		return rendered.computeIfAbsent(name, this::render);
+	}
+
+	private BytesReference render(final String name) {
+		try {
+			final XContentBuilder builder = JsonXContent.contentBuilder();
+			builder.startObject();
+			builder.field(name, resources.get(name));
+			builder.endObject();
+			return builder.bytes();
+		} catch (final IOException e) {
+			throw new ElasticsearchException("Cannot render " + name, e);
+		}
+	}
+}
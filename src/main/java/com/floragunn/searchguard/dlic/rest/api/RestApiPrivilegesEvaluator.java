@@ -17,21 +17,28 @@ package com.floragunn.searchguard.dlic.rest.api;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.security.cert.X509Certificate;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.rest.RestRequest;
 import org.elasticsearch.rest.RestRequest.Method;
 import org.elasticsearch.threadpool.ThreadPool;
@@ -45,8 +52,18 @@ import com.floragunn.searchguard.ssl.util.SSLRequestHelper.SSLInfo;
 import com.floragunn.searchguard.support.ConfigConstants;
 import com.floragunn.searchguard.user.User;
 
-// TODO: Make Singleton?
-public class RestApiPrivilegesEvaluator {
+/**
+ * Evaluates the access to the REST API endpoints. One instance is shared by
+ * all handlers of a node, see {@link SearchGuardRestApiActions}.
+ */
+public class RestApiPrivilegesEvaluator implements ToXContentObject {
+
+	public final static String SEARCHGUARD_RESTAPI_PRIVILEGES_CACHE_SIZE = "searchguard.restapi.privileges_cache.size";
+	public final static String SEARCHGUARD_RESTAPI_PRIVILEGES_CACHE_TTL = "searchguard.restapi.privileges_cache.ttl";
+	public final static String SEARCHGUARD_RESTAPI_CHECK_ADMIN_CERT_FIRST = "searchguard.restapi.check_admin_cert_first";
+
+	// transient holding the mapped Search Guard roles of the current request
+	private final static String MAPPED_ROLES_TRANSIENT = "_sg_restapi_mapped_roles";
 
 	protected final Logger logger = LogManager.getLogger(this.getClass());
 
@@ -61,20 +78,25 @@ public class RestApiPrivilegesEvaluator {
 
 	// endpoints per role, read and cached from settings. Changes here require a
 	// node restart, so it's save to cache.
-	private final Map<String, Map<Endpoint, List<Method>>> disabledEndpointsForRoles = new HashMap<>();
+	private final Map<String, EnumMap<Endpoint, EnumSet<Method>>> disabledEndpointsForRoles = new HashMap<>();
 
-	// endpoints per user, evaluated and cached dynamically. Changes here
-	// require a node restart, so it's save to cache.
-	private final Map<String, Map<Endpoint, List<Method>>> disabledEndpointsForUsers = new HashMap<>();
+	// endpoints per set of roles, evaluated and cached dynamically. The result only
+	// depends on the roles, so users with the same roles share an entry and a
+	// changed role mapping results in a new entry instead of a stale one.
+	private final Cache<Set<String>, Map<Endpoint, Set<Method>>> disabledEndpointsForUsers;
 	
 	// globally disabled endpoints and methods, will always be forbidden
-	Map<Endpoint, List<Method>> globallyDisabledEndpoints = new HashMap<>();
+	EnumMap<Endpoint, EnumSet<Method>> globallyDisabledEndpoints = new EnumMap<>(Endpoint.class);
 
 	// all endpoints and methods, will be returned for users that do not have any access at all
-	Map<Endpoint, List<Method>> allEndpoints = new HashMap<>();
+	Map<Endpoint, Set<Method>> allEndpoints;
 
 	private final Boolean roleBasedAccessEnabled;
 
+	// check for an admin certificate before mapping the roles of the user, avoids
+	// the role mapping for callers which authenticate with an admin certificate
+	private final boolean checkAdminCertFirst;
+
 	public RestApiPrivilegesEvaluator(Settings settings, AdminDNs adminDNs, PrivilegesEvaluator privilegesEvaluator, PrincipalExtractor principalExtractor, Path configPath,
 			ThreadPool threadPool) {
 
@@ -85,14 +107,24 @@ public class RestApiPrivilegesEvaluator {
 		this.threadPool = threadPool;
 		this.settings = settings;
 
+		final int cacheSize = settings.getAsInt(SEARCHGUARD_RESTAPI_PRIVILEGES_CACHE_SIZE, 1000);
+		final TimeValue cacheTtl = settings.getAsTime(SEARCHGUARD_RESTAPI_PRIVILEGES_CACHE_TTL, TimeValue.timeValueMinutes(60));
+		this.disabledEndpointsForUsers = CacheBuilder.<Set<String>, Map<Endpoint, Set<Method>>> builder()
+				.setMaximumWeight(cacheSize)
+				.setExpireAfterWrite(cacheTtl)
+				.removalListener(notification -> {
+					if (logger.isDebugEnabled()) {
+						logger.debug("Disabled endpoints for roles {} removed from cache, reason: {}", notification.getKey(), notification.getRemovalReason());
+					}
+				})
+				.build();
+
 		// set up
 		
 		// all endpoints and methods
-		Map<Endpoint, List<Method>> allEndpoints = new HashMap<>();
+		EnumMap<Endpoint, Set<Method>> allEndpoints = new EnumMap<>(Endpoint.class);
 		for(Endpoint endpoint : Endpoint.values()) {
-			List<Method> allMethods = new LinkedList<>();
-			allMethods.addAll(Arrays.asList(Method.values()));
-			allEndpoints.put(endpoint, allMethods);
+			allEndpoints.put(endpoint, Collections.unmodifiableSet(EnumSet.allOf(Method.class)));
 		}
 		this.allEndpoints = Collections.unmodifiableMap(allEndpoints);
 
@@ -100,6 +132,7 @@ public class RestApiPrivilegesEvaluator {
 		allowedRoles.addAll(settings.getAsList(ConfigConstants.SEARCHGUARD_RESTAPI_ROLES_ENABLED));
 
 		this.roleBasedAccessEnabled = !allowedRoles.isEmpty();
+		this.checkAdminCertFirst = settings.getAsBoolean(SEARCHGUARD_RESTAPI_CHECK_ADMIN_CERT_FIRST, false);
 
 		// globally disabled endpoints, disables access to Endpoint/Method combination for all roles
 		Settings globalSettings = settings.getAsSettings(ConfigConstants.SEARCHGUARD_RESTAPI_ENDPOINTS_DISABLED + ".global");
@@ -119,7 +152,7 @@ public class RestApiPrivilegesEvaluator {
 				}
 				continue;
 			}
-			Map<Endpoint, List<Method>> disabledEndpointsForRole = parseDisabledEndpoints(settingsForRole);
+			EnumMap<Endpoint, EnumSet<Method>> disabledEndpointsForRole = parseDisabledEndpoints(settingsForRole);
 			if (!disabledEndpointsForRole.isEmpty()) {
 				disabledEndpointsForRoles.put(role, disabledEndpointsForRole);
 			} else {
@@ -132,15 +165,15 @@ public class RestApiPrivilegesEvaluator {
 	}
 
 	@SuppressWarnings({ "rawtypes" })
-	private Map<Endpoint, List<Method>> parseDisabledEndpoints(Settings settings) {
+	private EnumMap<Endpoint, EnumSet<Method>> parseDisabledEndpoints(Settings settings) {
 
 		// Expects Setting like: 'ACTIONGROUPS=["GET", "POST"]'
 		if (settings == null || settings.isEmpty()) {
 			logger.error("Settings for disabled endpoint is null or empty: '{}', skipping.", settings);
-			return Collections.emptyMap();
+			return new EnumMap<>(Endpoint.class);
 		}
 
-		final Map<Endpoint, List<Method>> disabledEndpoints = new HashMap<Endpoint, List<Method>>();
+		final EnumMap<Endpoint, EnumSet<Method>> disabledEndpoints = new EnumMap<>(Endpoint.class);
 		
 		Map<String, Object> disabledEndpointsSettings = Utils.convertJsonToxToStructuredMap(settings);
 
@@ -164,7 +197,7 @@ public class RestApiPrivilegesEvaluator {
 			if (!(value.getValue() instanceof Collection)) {
 				logger.error("Disabled HTTP methods of endpoint '{}' must be an array, actually is '{}', skipping.", endpointString, (value.getValue().toString()));
 			}
-			List<Method> disabledMethods = new LinkedList<>();
+			EnumSet<Method> disabledMethods = EnumSet.noneOf(Method.class);
 			for (Object disabledMethodObj : (Collection) value.getValue()) {
 				if (disabledMethodObj == null) {
 					logger.error("Found null value in disabled HTTP methods of endpoint '{}', skipping.", endpointString);
@@ -180,7 +213,7 @@ public class RestApiPrivilegesEvaluator {
 
 				// Provide support for '*', means all methods
 				if (disabledMethodAsString.trim().equals("*")) {
-					disabledMethods.addAll(Arrays.asList(Method.values()));
+					disabledMethods.addAll(EnumSet.allOf(Method.class));
 					break;
 				}
 				// no wild card, disabled method must be one of
@@ -210,12 +243,37 @@ public class RestApiPrivilegesEvaluator {
 	 *         TODO: log failed attempt in audit log
 	 */
 	public String checkAccessPermissions(RestRequest request, Endpoint endpoint) throws IOException {
+		return checkAccessPermissions(request, endpoint, request.method());
+	}
+
+	/**
+	 * Same as {@link #checkAccessPermissions(RestRequest, Endpoint)}, but checks
+	 * the given method instead of the one of the request. Used for requests
+	 * which operate on several endpoints at once.
+	 */
+	public String checkAccessPermissions(RestRequest request, Endpoint endpoint, Method method) throws IOException {
 		
 		if (logger.isDebugEnabled()) {
-			logger.debug("Checking admin access for endpoint {}, path {} and method {}", endpoint.name(),  request.path(), request.method().name());
+			logger.debug("Checking admin access for endpoint {}, path {} and method {}", endpoint.name(),  request.path(), method.name());
 		}
 
-		String roleBasedAccessFailureReason = checkRoleBasedAccessPermissions(request, endpoint);
+		if (checkAdminCertFirst) {
+			String certBasedAccessFailureReason = checkAdminCertBasedAccessPermissions(request);
+			// TLS access granted, skip mapping the roles
+			if (certBasedAccessFailureReason == null) {
+				return null;
+			}
+
+			String roleBasedAccessFailureReason = checkRoleBasedAccessPermissions(endpoint, method);
+			// Role based access granted
+			if (roleBasedAccessFailureReason == null) {
+				return null;
+			}
+
+			return constructAccessErrorMessage(roleBasedAccessFailureReason, certBasedAccessFailureReason);
+		}
+
+		String roleBasedAccessFailureReason = checkRoleBasedAccessPermissions(endpoint, method);
 		// Role based access granted
 		if (roleBasedAccessFailureReason == null) {
 			return null;
@@ -227,10 +285,24 @@ public class RestApiPrivilegesEvaluator {
 			return null;
 		}
 
-
 		return constructAccessErrorMessage(roleBasedAccessFailureReason, certBasedAccessFailureReason);
 	}
 
+	/**
+	 * Map the Search Guard roles of the user. The result is kept in the thread
+	 * context, so the roles are mapped once per request, even if several
+	 * permission checks are done.
+	 */
+	public Set<String> mapSgRoles(User user, TransportAddress remoteAddress) {
+		final ThreadContext threadContext = threadPool.getThreadContext();
+		Set<String> userRoles = threadContext.getTransient(MAPPED_ROLES_TRANSIENT);
+		if (userRoles == null) {
+			userRoles = privilegesEvaluator.mapSgRoles(user, remoteAddress);
+			threadContext.putTransient(MAPPED_ROLES_TRANSIENT, userRoles);
+		}
+		return userRoles;
+	}
+
 	public Boolean currentUserHasRestApiAccess(Set<String> userRoles) {
 
 		// check if user has any role that grants access
@@ -238,62 +310,71 @@ public class RestApiPrivilegesEvaluator {
 
 	}
 
-	public Map<Endpoint, List<Method>> getDisabledEndpointsForCurrentUser(String userPrincipal, Set<String> userRoles) {
-		
-		// cache
-		if (disabledEndpointsForUsers.containsKey(userPrincipal)) {
-			return disabledEndpointsForUsers.get(userPrincipal);
-		}
-		
+	public Map<Endpoint, Set<Method>> getDisabledEndpointsForCurrentUser(String userPrincipal, Set<String> userRoles) {
+
 		if (!currentUserHasRestApiAccess(userRoles)) {
 			return this.allEndpoints;
 		}
 
+		// copy, the key must not change while it is in the cache
+		final Set<String> roles = Collections.unmodifiableSet(new HashSet<>(userRoles));
+
+		final Map<Endpoint, Set<Method>> disabledEndpoints;
+		try {
+			disabledEndpoints = disabledEndpointsForUsers.computeIfAbsent(roles, this::evaluateDisabledEndpoints);
+		} catch (ExecutionException e) {
+			throw new ElasticsearchException("Cannot evaluate disabled endpoints for roles " + roles, e.getCause());
+		}
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Disabled endpoints for user {} after retaining all : {}", userPrincipal, disabledEndpoints);
+		}
+
+		return disabledEndpoints;
+	}
+
+	private Map<Endpoint, Set<Method>> evaluateDisabledEndpoints(Set<String> userRoles) {
+
 		// will contain the final list of disabled endpoints and methods
-		Map<Endpoint, List<Method>> finalEndpoints = new HashMap<>();
+		EnumMap<Endpoint, Set<Method>> finalEndpoints = new EnumMap<>(Endpoint.class);
 		
 		// List of all disabled endpoints for user. Disabled endpoints must be configured in all
 		// roles to take effect. If a role contains a disabled endpoint, but another role
 		// allows this endpoint (i.e. not contained in the disabled endpoints for this role),
 		// the access is allowed.
-				
-		// make list mutable
-		List<Endpoint> remainingEndpoints = new LinkedList<>(Arrays.asList(Endpoint.values()));
+		EnumSet<Endpoint> remainingEndpoints = EnumSet.allOf(Endpoint.class);
 
 		// only retain endpoints contained in all roles for user
 		boolean hasDisabledEndpoints = false;
 		for (String userRole : userRoles) {
-			Map<Endpoint, List<Method>> endpointsForRole = disabledEndpointsForRoles.get(userRole);
+			EnumMap<Endpoint, EnumSet<Method>> endpointsForRole = disabledEndpointsForRoles.get(userRole);
 			if (endpointsForRole == null || endpointsForRole.isEmpty()) {
 				continue;
 			}
-			Set<Endpoint> disabledEndpoints = endpointsForRole.keySet();
-			remainingEndpoints.retainAll(disabledEndpoints);
+			remainingEndpoints.retainAll(endpointsForRole.keySet());
 			hasDisabledEndpoints = true;
 		}
 
 		if (logger.isDebugEnabled()) {
-			logger.debug("Remaining endpoints for user {} after retaining all : {}", userPrincipal, remainingEndpoints);
+			logger.debug("Remaining endpoints for roles {} after retaining all : {}", userRoles, remainingEndpoints);
 		}
 
 		// if user does not have any disabled endpoints, only globally disabled endpoints apply
 		if (!hasDisabledEndpoints) {
 
 			if (logger.isDebugEnabled()) {
-				logger.debug("No disabled endpoints for user {} at all,  only globally disabledendpoints apply.", userPrincipal, remainingEndpoints);
+				logger.debug("No disabled endpoints for roles {} at all, only globally disabled endpoints apply.", userRoles);
 			}
-			disabledEndpointsForUsers.put(userPrincipal, addGloballyDisabledEndpoints(finalEndpoints));
-			return finalEndpoints;
+			return addGloballyDisabledEndpoints(finalEndpoints);
 
 		}
 		
 		// one or more disabled remaining endpoints, keep only 
 		// methods contained in all roles for each endpoint
 		for (Endpoint endpoint : remainingEndpoints) {
-			// make list mutable
-			List<Method> remainingMethodsForEndpoint = new LinkedList<>(Arrays.asList(Method.values()));
+			EnumSet<Method> remainingMethodsForEndpoint = EnumSet.allOf(Method.class);
 			for (String userRole : userRoles) {
-				Map<Endpoint, List<Method>> endpoints = disabledEndpointsForRoles.get(userRole);
+				EnumMap<Endpoint, EnumSet<Method>> endpoints = disabledEndpointsForRoles.get(userRole);
 				if (endpoints != null && !endpoints.isEmpty()) {
 					remainingMethodsForEndpoint.retainAll(endpoints.get(endpoint));
 				}
@@ -302,35 +383,38 @@ public class RestApiPrivilegesEvaluator {
 			finalEndpoints.put(endpoint, remainingMethodsForEndpoint);
 		}
 
-		if (logger.isDebugEnabled()) {
-			logger.debug("Disabled endpoints for user {} after retaining all : {}", userPrincipal, finalEndpoints);
-		}
-
 		// add globally disabled endpoints and methods, will always be disabled
-		addGloballyDisabledEndpoints(finalEndpoints);		
-		disabledEndpointsForUsers.put(userPrincipal, finalEndpoints);
-		
-		if (logger.isDebugEnabled()) {
-			logger.debug("Disabled endpoints for user {} after retaining all : {}", disabledEndpointsForUsers.get(userPrincipal));
-		}
+		return addGloballyDisabledEndpoints(finalEndpoints);
+	}
+
+	@Override
+	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+		builder.startObject();
+		statsToXContent("disabled_endpoints", disabledEndpointsForUsers, builder);
+		builder.endObject();
+		return builder;
+	}
 
-		return disabledEndpointsForUsers.get(userPrincipal);
+	private static void statsToXContent(String name, Cache<?, ?> cache, XContentBuilder builder) throws IOException {
+		final Cache.CacheStats stats = cache.stats();
+		builder.startObject(name);
+		builder.field("entries", cache.count());
+		builder.field("hits", stats.getHits());
+		builder.field("misses", stats.getMisses());
+		builder.field("evictions", stats.getEvictions());
+		builder.endObject();
 	}
 	
-	private Map<Endpoint, List<Method>> addGloballyDisabledEndpoints(Map<Endpoint, List<Method>> endpoints) {
-		if(globallyDisabledEndpoints != null && !globallyDisabledEndpoints.isEmpty()) {
-			Set<Endpoint> globalEndoints = globallyDisabledEndpoints.keySet();
-			for(Endpoint endpoint : globalEndoints) {
-				endpoints.putIfAbsent(endpoint, new LinkedList<>());
-				endpoints.get(endpoint).addAll(globallyDisabledEndpoints.get(endpoint));
-			}			
+	private Map<Endpoint, Set<Method>> addGloballyDisabledEndpoints(EnumMap<Endpoint, Set<Method>> endpoints) {
+		for (Entry<Endpoint, EnumSet<Method>> entry : globallyDisabledEndpoints.entrySet()) {
+			endpoints.computeIfAbsent(entry.getKey(), endpoint -> EnumSet.noneOf(Method.class)).addAll(entry.getValue());
 		}
-		return endpoints;
+		return Collections.unmodifiableMap(endpoints);
 	}
 	
-	private String checkRoleBasedAccessPermissions(RestRequest request, Endpoint endpoint) {
+	private String checkRoleBasedAccessPermissions(Endpoint endpoint, Method method) {
 		if (logger.isTraceEnabled()) {
-			logger.trace("Checking role based admin access for endpoint {} and method {}", endpoint.name(), request.method().name());
+			logger.trace("Checking role based admin access for endpoint {} and method {}", endpoint.name(), method.name());
 		}
 		// Role based access. Check that user has role suitable for admin access
 		// and that the role has also access to this endpoint.
@@ -341,7 +425,7 @@ public class RestApiPrivilegesEvaluator {
 			final TransportAddress remoteAddress = (TransportAddress) threadPool.getThreadContext().getTransient(ConfigConstants.SG_REMOTE_ADDRESS);
 
 			// map the users SG roles
-			Set<String> userRoles = privilegesEvaluator.mapSgRoles(user, remoteAddress);
+			Set<String> userRoles = mapSgRoles(user, remoteAddress);
 
 			// check if user has any role that grants access
 			if (currentUserHasRestApiAccess(userRoles)) {
@@ -349,14 +433,10 @@ public class RestApiPrivilegesEvaluator {
 				// multiple roles, the endpoint
 				// needs to be disabled in all roles.
 
-				Map<Endpoint, List<Method>> disabledEndpointsForUser = getDisabledEndpointsForCurrentUser(user.getName(), userRoles);
-
-				if (logger.isDebugEnabled()) {
-					logger.debug("Disabled endpoints for user {} : {} ", user, disabledEndpointsForUser);
-				}
+				Map<Endpoint, Set<Method>> disabledEndpointsForUser = getDisabledEndpointsForCurrentUser(user.getName(), userRoles);
 
 				// check if we have any disabled methods for this endpoint
-				List<Method> disabledMethodsForEndpoint = disabledEndpointsForUser.get(endpoint);
+				Set<Method> disabledMethodsForEndpoint = disabledEndpointsForUser.get(endpoint);
 
 				// no settings, all methods for this endpoint allowed
 				if (disabledMethodsForEndpoint == null || disabledMethodsForEndpoint.isEmpty()) {
@@ -367,17 +447,17 @@ public class RestApiPrivilegesEvaluator {
 				}
 
 				// some methods disabled, check requested method
-				if (!disabledMethodsForEndpoint.contains(request.method())) {
+				if (!disabledMethodsForEndpoint.contains(method)) {
 					if (logger.isDebugEnabled()) {
-						logger.debug("Request method {} for user {} and endpoint {} not restricted, access allowed ", request.method(), user, endpoint);
+						logger.debug("Request method {} for user {} and endpoint {} not restricted, access allowed ", method, user, endpoint);
 					}
 					return null;
 				}
 
 				logger.info("User {} with Search Guard Roles {} does not have access to endpoint {} and method {}, checking admin TLS certificate now.", user, userRoles,
-						endpoint.name(), request.method());
+						endpoint.name(), method);
 				return "User " + user.getName() + " with Search Guard Roles " + userRoles + " does not have any access to endpoint " + endpoint.name() + " and method "
-						+ request.method().name();
+						+ method.name();
 			} else {
 				// no, but maybe the request contains a client certificate.
 				// Remember error reason for better response message later on.
@@ -397,15 +477,24 @@ public class RestApiPrivilegesEvaluator {
 		SSLInfo sslInfo = SSLRequestHelper.getSSLInfo(settings, configPath, request, principalExtractor);
 
 		if (sslInfo == null) {
-			// here we log on error level, since authentication finally failed
-			logger.warn("No ssl info found in request.");
+			// here we log on error level, since authentication finally failed.
+			// If the certificate is checked first, most requests do not have one.
+			if (checkAdminCertFirst) {
+				logger.debug("No ssl info found in request.");
+			} else {
+				logger.warn("No ssl info found in request.");
+			}
 			return "No ssl info found in request.";
 		}
 
 		X509Certificate[] certs = sslInfo.getX509Certs();
 
 		if (certs == null || certs.length == 0) {
-			logger.warn("No client TLS certificate found in request");
+			if (checkAdminCertFirst) {
+				logger.debug("No client TLS certificate found in request");
+			} else {
+				logger.warn("No client TLS certificate found in request");
+			}
 			return "No client TLS certificate found in request";
 		}
 
@@ -416,6 +505,13 @@ public class RestApiPrivilegesEvaluator {
 		return null;
 	}
 
+	/**
+	 * Drop all cached decisions of this node
+	 */
+	public void clearCaches() {
+		disabledEndpointsForUsers.invalidateAll();
+	}
+
 	private String constructAccessErrorMessage(String roleBasedAccessFailure, String certBasedAccessFailure) {
 		return roleBasedAccessFailure + ". " + certBasedAccessFailure;
 	}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.dlic.rest.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.EsThreadPoolExecutor;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Bounded executor all REST API handlers run their work on, so that a burst
+ * of management calls cannot occupy the threads which serve regular search
+ * and indexing traffic. One instance is shared by all handlers of a node and
+ * closed together with the node.
+ * <p>
+ * Tasks are never run on the submitting thread, which usually is a network
+ * thread. If the queue is full they are rejected, which maps to HTTP status 429.
+ */
+public class RestApiThreadPool implements ToXContentObject, Closeable {
+
+	public final static String THREAD_POOL_NAME = "searchguard_rest_api";
+
+	public final static String SEARCHGUARD_RESTAPI_THREAD_POOL_SIZE = "searchguard.restapi.thread_pool.size";
+	public final static String SEARCHGUARD_RESTAPI_THREAD_POOL_QUEUE_SIZE = "searchguard.restapi.thread_pool.queue_size";
+
+	protected final Logger log = LogManager.getLogger(this.getClass());
+
+	private final EsThreadPoolExecutor executor;
+	private final int size;
+	private final int queueSize;
+	private final AtomicLong rejected = new AtomicLong();
+
+	public RestApiThreadPool(final Settings settings, final ThreadPool threadPool) {
+		this.size = settings.getAsInt(SEARCHGUARD_RESTAPI_THREAD_POOL_SIZE,
+				Math.max(1, Math.min(4, EsExecutors.numberOfProcessors(settings) / 2)));
+		this.queueSize = settings.getAsInt(SEARCHGUARD_RESTAPI_THREAD_POOL_QUEUE_SIZE, 100);
+
+		// EsThreadPoolExecutor preserves the ThreadContext of the submitting thread,
+		// so the authenticated user and its transient headers are still available
+		this.executor = EsExecutors.newFixed(THREAD_POOL_NAME, size, queueSize,
+				EsExecutors.daemonThreadFactory(settings, THREAD_POOL_NAME), threadPool.getThreadContext());
+
+		if (log.isDebugEnabled()) {
+			log.debug("REST API thread pool initialized with {} threads and queue size {}", size, queueSize);
+		}
+	}
+
+	/**
+	 * Execute the given task on the REST API thread pool.
+	 *
+	 * @throws EsRejectedExecutionException
+	 *             if the queue is full or the pool has been closed. It maps to
+	 *             HTTP status 429.
+	 */
+	public void execute(final Runnable command) {
+		try {
+			executor.execute(command);
+		} catch (final EsRejectedExecutionException e) {
+			rejected.incrementAndGet();
+			throw e;
+		}
+	}
+
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	@Override
+	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+		builder.startObject();
+		builder.field("name", THREAD_POOL_NAME);
+		builder.field("threads", size);
+		builder.field("queue_size", queueSize);
+		builder.field("active", getActiveCount());
+		builder.field("queue", getQueueDepth());
+		builder.field("largest", executor.getLargestPoolSize());
+		builder.field("completed", executor.getCompletedTaskCount());
+		builder.field("rejected", getRejectedCount());
+		builder.endObject();
+		return builder;
+	}
+
+	/**
+	 * Stop accepting tasks and wait a bit for the running ones to finish
+	 */
+	@Override
+	public void close() {
+		ThreadPool.terminate(executor, 10, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.dlic.rest.api;
+
+import java.nio.file.Path;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import com.floragunn.searchguard.auditlog.AuditLog;
+import com.floragunn.searchguard.configuration.AdminDNs;
+import com.floragunn.searchguard.configuration.IndexBaseConfigurationRepository;
+import com.floragunn.searchguard.configuration.PrivilegesEvaluator;
+import com.floragunn.searchguard.dlic.rest.validation.AbstractConfigurationValidator;
+import com.floragunn.searchguard.dlic.rest.validation.NoOpValidator;
+import com.floragunn.searchguard.ssl.transport.PrincipalExtractor;
+
+/**
+ * Provides runtime statistics of the REST API module on this node 
+ */
+public class SystemInfoApiAction extends AbstractApiAction {
+
+	private final PasswordHasher passwordHasher;
+
+	protected SystemInfoApiAction(final Settings settings, final Path configPath, final RestController controller, final Client client,
+			final AdminDNs adminDNs, final IndexBaseConfigurationRepository cl, final ClusterService cs,
+			final PrincipalExtractor principalExtractor, final PrivilegesEvaluator evaluator, ThreadPool threadPool, AuditLog auditLog, final RestApiThreadPool restApiThreadPool,
+			final ConfigWriteCoalescer configWriteCoalescer, final ConfigResponseCache configResponseCache,
+			final RestApiPrivilegesEvaluator restApiPrivilegesEvaluator, final PasswordHasher passwordHasher) {
+		super(settings, configPath, controller, client, adminDNs, cl, cs, principalExtractor, evaluator, threadPool, auditLog, restApiThreadPool, configWriteCoalescer, configResponseCache, restApiPrivilegesEvaluator);
+		this.passwordHasher = passwordHasher;
+		controller.registerHandler(Method.GET, "/_searchguard/api/systeminfo", this);
+	}
+
+	@Override
+	protected Endpoint getEndpoint() {
+		return Endpoint.SYSTEMINFO;
+	}
+
+	@Override
+	protected void handleGet(final RestChannel channel, RestRequest request, Client client,
+			final Settings.Builder additionalSettingsBuilder) throws Throwable {
+
+		final XContentBuilder builder = XContentFactory.jsonBuilder().prettyPrint();
+		builder.startObject();
+		builder.field("node", cs.localNode().getName());
+		builder.field("thread_pool", restApiThreadPool);
+		builder.field("config_response_cache", configResponseCache);
+		builder.field("privileges_cache", restApiPrivilegesEvaluator);
+		builder.field("password_hashing", passwordHasher);
+		builder.endObject();
+
+		channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+	}
+
+	@Override
+	protected AbstractConfigurationValidator getValidator(Method method, BytesReference ref) {
+		return new NoOpValidator(method, ref);
+	}
+
+	@Override
+	protected String getResourceName() {
+		// not needed, no single resource
+		return null;
+	}
+
+	@Override
+	protected String getConfigName() {
+		// not needed
+		return null;
+	}
+
+	@Override
+	protected void consumeParameters(final RestRequest request) {
+		// not needed
+	}
+
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2018 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.dlic.rest.support;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+
+/**
+ * A patch for structured configuration maps. An array is treated as JSON Patch
+ * (RFC 6902), an object as JSON Merge Patch (RFC 7386).
+ * <p>
+ * Instances are immutable, {@link #apply(Object)} never modifies its argument.
+ */
+public final class JsonPatch {
+
+    private final List<Operation> operations;
+    private final Map<String, Object> mergePatch;
+
+    private JsonPatch(final List<Operation> operations, final Map<String, Object> mergePatch) {
+        this.operations = operations;
+        this.mergePatch = mergePatch;
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the content is neither a valid JSON Patch nor a JSON object
+     */
+    @SuppressWarnings("unchecked")
+    public static JsonPatch parse(final BytesReference content) throws IOException {
+        try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY, content, XContentType.JSON)) {
+            final XContentParser.Token token = parser.nextToken();
+
+            if (token == XContentParser.Token.START_OBJECT) {
+                return new JsonPatch(null, parser.map());
+            }
+
+            if (token != XContentParser.Token.START_ARRAY) {
+                throw new IllegalArgumentException("Patch must be a JSON Patch array or a JSON Merge Patch object");
+            }
+
+            final List<Operation> operations = new ArrayList<>();
+            for (final Object operation : parser.list()) {
+                if (!(operation instanceof Map)) {
+                    throw new IllegalArgumentException("Patch operation must be an object, was: " + operation);
+                }
+                operations.add(Operation.parse((Map<String, Object>) operation));
+            }
+            return new JsonPatch(Collections.unmodifiableList(operations), null);
+        }
+    }
+
+    /**
+     * Apply the patch to a copy of the given document
+     *
+     * @return the patched copy
+     * @throws IllegalArgumentException
+     *             if an operation cannot be applied, i.e. a path does not exist or
+     *             a test operation fails
+     */
+    public Object apply(final Object document) {
+        if (mergePatch != null) {
+            return merge(deepCopy(document), mergePatch);
+        }
+
+        Object result = deepCopy(document);
+        for (final Operation operation : operations) {
+            result = operation.apply(result);
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Object deepCopy(final Object value) {
+        if (value instanceof Map) {
+            final Map<String, Object> copy = new HashMap<>();
+            for (final Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                copy.put(entry.getKey(), deepCopy(entry.getValue()));
+            }
+            return copy;
+        }
+        if (value instanceof List) {
+            final List<Object> copy = new ArrayList<>(((List<Object>) value).size());
+            for (final Object element : (List<Object>) value) {
+                copy.add(deepCopy(element));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object merge(final Object target, final Object patch) {
+        if (!(patch instanceof Map)) {
+            return deepCopy(patch);
+        }
+
+        final Map<String, Object> result = target instanceof Map ? (Map<String, Object>) target : new HashMap<>();
+        for (final Entry<String, Object> entry : ((Map<String, Object>) patch).entrySet()) {
+            if (entry.getValue() == null) {
+                result.remove(entry.getKey());
+            } else {
+                result.put(entry.getKey(), merge(result.get(entry.getKey()), entry.getValue()));
+            }
+        }
+        return result;
+    }
+
+    private static final class Operation {
+
+        private final String op;
+        private final List<String> path;
+        private final List<String> from;
+        private final Object value;
+
+        private Operation(final String op, final List<String> path, final List<String> from, final Object value) {
+            this.op = op;
+            this.path = path;
+            this.from = from;
+            this.value = value;
+        }
+
+        static Operation parse(final Map<String, Object> operation) {
+            final Object op = operation.get("op");
+            final Object path = operation.get("path");
+
+            if (!(op instanceof String) || !(path instanceof String)) {
+                throw new IllegalArgumentException("Patch operation requires 'op' and 'path': " + operation);
+            }
+
+            switch ((String) op) {
+            case "add":
+            case "replace":
+            case "test":
+                if (!operation.containsKey("value")) {
+                    throw new IllegalArgumentException("Patch operation '" + op + "' requires 'value'");
+                }
+                return new Operation((String) op, parsePointer((String) path), null, operation.get("value"));
+            case "remove":
+                return new Operation((String) op, parsePointer((String) path), null, null);
+            case "move":
+            case "copy":
+                if (!(operation.get("from") instanceof String)) {
+                    throw new IllegalArgumentException("Patch operation '" + op + "' requires 'from'");
+                }
+                final List<String> from = parsePointer((String) operation.get("from"));
+                final List<String> to = parsePointer((String) path);
+                if (op.equals("move") && to.size() > from.size() && to.subList(0, from.size()).equals(from)) {
+                    throw new IllegalArgumentException("Cannot move '" + operation.get("from") + "' into one of its children");
+                }
+                return new Operation((String) op, to, from, null);
+            default:
+                throw new IllegalArgumentException("Unknown patch operation '" + op + "'");
+            }
+        }
+
+        Object apply(final Object document) {
+            switch (op) {
+            case "add":
+                return add(document, path, deepCopy(value));
+            case "remove":
+                remove(document, path);
+                return document;
+            case "replace":
+                if (path.isEmpty()) {
+                    return deepCopy(value);
+                }
+                remove(document, path);
+                return add(document, path, deepCopy(value));
+            case "move":
+                final Object moved = get(document, from);
+                remove(document, from);
+                return add(document, path, moved);
+            case "copy":
+                return add(document, path, deepCopy(get(document, from)));
+            case "test":
+                if (!Objects.equals(value, get(document, path))) {
+                    throw new IllegalArgumentException("Test failed for path '" + toPointer(path) + "'");
+                }
+                return document;
+            default:
+                throw new IllegalStateException(op);
+            }
+        }
+
+        /**
+         * Split a JSON pointer (RFC 6901) into its unescaped reference tokens
+         */
+        private static List<String> parsePointer(final String pointer) {
+            if (pointer.isEmpty()) {
+                return Collections.emptyList();
+            }
+            if (!pointer.startsWith("/")) {
+                throw new IllegalArgumentException("Invalid JSON pointer '" + pointer + "'");
+            }
+            final List<String> tokens = new ArrayList<>();
+            for (final String token : pointer.substring(1).split("/", -1)) {
+                tokens.add(token.replace("~1", "/").replace("~0", "~"));
+            }
+            return Collections.unmodifiableList(tokens);
+        }
+
+        private static String toPointer(final List<String> tokens) {
+            final StringBuilder pointer = new StringBuilder();
+            for (final String token : tokens) {
+                pointer.append('/').append(token.replace("~", "~0").replace("/", "~1"));
+            }
+            return pointer.toString();
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Object get(final Object document, final List<String> tokens) {
+            Object current = document;
+            for (int i = 0; i < tokens.size(); i++) {
+                final String token = tokens.get(i);
+                if (current instanceof Map && ((Map<String, Object>) current).containsKey(token)) {
+                    current = ((Map<String, Object>) current).get(token);
+                } else if (current instanceof List) {
+                    current = ((List<Object>) current).get(index((List<Object>) current, token, false, tokens));
+                } else {
+                    throw new IllegalArgumentException("Path '" + toPointer(tokens.subList(0, i + 1)) + "' does not exist");
+                }
+            }
+            return current;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Object add(final Object document, final List<String> tokens, final Object value) {
+            if (tokens.isEmpty()) {
+                return value;
+            }
+            final Object parent = get(document, tokens.subList(0, tokens.size() - 1));
+            final String last = tokens.get(tokens.size() - 1);
+
+            if (parent instanceof Map) {
+                ((Map<String, Object>) parent).put(last, value);
+            } else if (parent instanceof List) {
+                final List<Object> list = (List<Object>) parent;
+                list.add("-".equals(last) ? list.size() : index(list, last, true, tokens), value);
+            } else {
+                throw new IllegalArgumentException("Cannot add to '" + toPointer(tokens) + "', parent is not a container");
+            }
+            return document;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static void remove(final Object document, final List<String> tokens) {
+            if (tokens.isEmpty()) {
+                throw new IllegalArgumentException("Cannot remove the whole document");
+            }
+            final Object parent = get(document, tokens.subList(0, tokens.size() - 1));
+            final String last = tokens.get(tokens.size() - 1);
+
+            if (parent instanceof Map && ((Map<String, Object>) parent).containsKey(last)) {
+                ((Map<String, Object>) parent).remove(last);
+            } else if (parent instanceof List) {
+                ((List<Object>) parent).remove(index((List<Object>) parent, last, false, tokens));
+            } else {
+                throw new IllegalArgumentException("Path '" + toPointer(tokens) + "' does not exist");
+            }
+        }
+
+        private static int index(final List<Object> list, final String token, final boolean inclusive, final List<String> tokens) {
+            try {
+                final int index = Integer.parseInt(token);
+                if (index >= 0 && (index < list.size() || (inclusive && index == list.size()))) {
+                    return index;
+                }
+            } catch (final NumberFormatException e) {
+                // handled below
+            }
+            throw new IllegalArgumentException("Invalid array index in path '" + toPointer(tokens) + "'");
+        }
+    }
+}
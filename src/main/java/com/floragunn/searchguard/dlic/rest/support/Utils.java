@@ -15,11 +15,16 @@
 package com.floragunn.searchguard.dlic.rest.support;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 
 import org.elasticsearch.ElasticsearchParseException;
 import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
@@ -29,6 +34,8 @@ import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.common.xcontent.json.JsonXContent;
 
 public class Utils {
+
+    private static final ToXContent.Params FLAT_SETTINGS = new ToXContent.MapParams(Collections.singletonMap("flat_settings", "true"));
     
     public static Map<String, Object> convertJsonToxToStructuredMap(ToXContent jsonContent) {
         Map<String, Object> disabledEndpointsSettings = null;
@@ -42,6 +49,44 @@ public class Utils {
         return disabledEndpointsSettings;
     }
     
+    /**
+     * Write the settings as nested JSON fields into the current object of the
+     * builder. Keys are visited in sorted order, so all keys below a path are
+     * adjacent and only the objects on the path of the current key need to be
+     * open. Unlike {@link Settings#toXContent}, no structured copy of the whole
+     * settings is built.
+     */
+    public static void writeStructured(final XContentBuilder builder, final Settings settings) throws IOException {
+        final List<String> openPath = new ArrayList<>();
+
+        for (final String key : new TreeSet<>(settings.keySet())) {
+            final String[] path = key.split("\\.");
+
+            // close objects which are not on the path of this key
+            int common = 0;
+            while (common < openPath.size() && common < path.length - 1 && openPath.get(common).equals(path[common])) {
+                common++;
+            }
+            while (openPath.size() > common) {
+                builder.endObject();
+                openPath.remove(openPath.size() - 1);
+            }
+
+            for (int i = common; i < path.length - 1; i++) {
+                builder.startObject(path[i]);
+                openPath.add(path[i]);
+            }
+
+            // copying keeps the type of the value, a string or a list of strings
+            Settings.builder().copy(path[path.length - 1], key, settings).build().toXContent(builder, FLAT_SETTINGS);
+        }
+
+        while (!openPath.isEmpty()) {
+            builder.endObject();
+            openPath.remove(openPath.size() - 1);
+        }
+    }
+
     public static BytesReference convertStructuredMapToBytes(Map<String, Object> structuredMap) {
         try {
             return JsonXContent.contentBuilder().map(structuredMap).bytes();
@@ -49,5 +94,18 @@ public class Utils {
             throw new ElasticsearchParseException("Failed to convert map", e);
         }
     }
+
+    /**
+     * @return true if the content only consists of whitespace or control
+     *         characters, like {@link String#trim()} without decoding it
+     */
+    public static boolean isBlank(final BytesReference content) {
+        for (int i = 0; i < content.length(); i++) {
+            if ((content.get(i) & 0xff) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
     
 }
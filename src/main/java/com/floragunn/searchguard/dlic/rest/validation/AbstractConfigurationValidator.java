@@ -15,9 +15,11 @@
 package com.floragunn.searchguard.dlic.rest.validation;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -25,24 +27,23 @@ import java.util.Set;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchParseException;
 import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.rest.RestRequest.Method;
 
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonToken;
+import com.floragunn.searchguard.dlic.rest.validation.ValidationSchema.Element;
 import com.google.common.base.Joiner;
 
 public abstract class AbstractConfigurationValidator {
 
-	JsonFactory factory = new JsonFactory();
-
 	/* public for testing */
 	public final static String INVALID_KEYS_KEY = "invalid_keys";
 
@@ -54,12 +55,8 @@ public abstract class AbstractConfigurationValidator {
 
 	protected final Logger log = LogManager.getLogger(this.getClass());
 
-	/** Define the various keys for this validator */
-	protected final Map<String, DataType> allowedKeys = new HashMap<>();
-
-	protected final Set<String> mandatoryKeys = new HashSet<>();
-
-	protected final Set<String> mandatoryOrKeys = new HashSet<>();
+	/** Allowed, mandatory keys and the structure of their values */
+	protected final ValidationSchema schema;
 
 	protected final Map<String, String> wrongDatatypes = new HashMap<>();
 
@@ -73,114 +70,124 @@ public abstract class AbstractConfigurationValidator {
 	/** The error type */
 	protected ErrorType errorType = ErrorType.NONE;
 
-	/** Behaviour regarding payload */
-	protected boolean payloadMandatory = false;
+	private Settings.Builder settingsBuilder;
 
-	protected boolean payloadAllowed = true;
+	/** The limit that has been exceeded, if any */
+	private long exceededLimit;
 
-	private Settings.Builder settingsBuilder;
+	/** Keys seen so far while parsing */
+	private int keys;
 
 	protected final Method method;
 
 	protected final BytesReference content;
 
-	public AbstractConfigurationValidator(final Method method, final BytesReference ref) {
+	public AbstractConfigurationValidator(final Method method, final BytesReference ref, final ValidationSchema schema) {
 		this.content = ref;
 		this.method = method;
+		this.schema = schema;
 	}
 
 	public boolean validateSettings() {
+		return validateSettings(ValidationLimits.NONE);
+	}
+
+	/**
+	 * Validate the content, parsing stops as soon as one of the given limits is
+	 * exceeded
+	 */
+	public boolean validateSettings(final ValidationLimits limits) {
 		// no payload for DELETE and GET requests
 		if (method.equals(Method.DELETE) || method.equals(Method.GET)) {
 			return true;
 		}
-		// try to parse payload
+		if (content != null && content.length() > limits.getMaxBodySize()) {
+			this.errorType = ErrorType.BODY_TOO_LARGE;
+			this.exceededLimit = limits.getMaxBodySize();
+			return false;
+		}
+		// parse payload, collect the requested keys and check their datatypes in one pass
+		final Set<String> requested = new HashSet<String>();
 		try {
-			this.settingsBuilder = toSettingsBuilder(content);
+			this.settingsBuilder = parse(content, requested, limits);
+		} catch (LimitExceededException e) {
+			this.errorType = e.errorType;
+			this.exceededLimit = e.limit;
+			return false;
 		} catch (ElasticsearchException e) {
 			this.errorType = ErrorType.BODY_NOT_PARSEABLE;
 			return false;
 		}
 
-		Settings settings = settingsBuilder.build();
-
-		Set<String> requested = new HashSet<String>(settings.names());
 		// check if payload is accepted at all
-		if (!this.payloadAllowed && !requested.isEmpty()) {
+		if (!schema.isPayloadAllowed() && !requested.isEmpty()) {
 			this.errorType = ErrorType.PAYLOAD_NOT_ALLOWED;
 			return false;
 		}
 		// check if payload is mandatory
-		if (this.payloadMandatory && requested.isEmpty()) {
+		if (schema.isPayloadMandatory() && requested.isEmpty()) {
 			this.errorType = ErrorType.PAYLOAD_MANDATORY;
 			return false;
 		}
 
 		// mandatory settings, one of ...
-		if (Collections.disjoint(requested, mandatoryOrKeys)) {
-			this.missingMandatoryOrKeys.addAll(mandatoryOrKeys);
+		if (Collections.disjoint(requested, schema.getMandatoryOrKeys())) {
+			this.missingMandatoryOrKeys.addAll(schema.getMandatoryOrKeys());
 		}
 
 		// mandatory settings
-		Set<String> mandatory = new HashSet<>(mandatoryKeys);
-		mandatory.removeAll(requested);
-		missingMandatoryKeys.addAll(mandatory);
+		for (String mandatory : schema.getMandatoryKeys()) {
+			if (!requested.contains(mandatory)) {
+				missingMandatoryKeys.add(mandatory);
+			}
+		}
 
 		// invalid settings
-		Set<String> allowed = new HashSet<>(allowedKeys.keySet());
-		requested.removeAll(allowed);
-		this.invalidKeys.addAll(requested);
+		for (String key : requested) {
+			if (!schema.isAllowed(key)) {
+				invalidKeys.add(key);
+			}
+		}
 		boolean valid = missingMandatoryKeys.isEmpty() && invalidKeys.isEmpty() && missingMandatoryOrKeys.isEmpty();
 		if (!valid) {
 			this.errorType = ErrorType.INVALID_CONFIGURATION;
 		}
 
 		// check types
-		try {
-			if (!checkDatatypes()) {
-				this.errorType = ErrorType.WRONG_DATATYPE;
-				return false;
-			}
-		} catch (Exception e) {
-			this.errorType = ErrorType.BODY_NOT_PARSEABLE;
+		if (!wrongDatatypes.isEmpty()) {
+			this.errorType = ErrorType.WRONG_DATATYPE;
 			return false;
 		}
 
 		return valid;
 	}
 
-	private boolean checkDatatypes() throws Exception {		
-		String contentAsJson = XContentHelper.convertToJson(content, false, XContentType.YAML);
-		try(JsonParser parser = factory.createParser(contentAsJson)) {
-    		JsonToken token = null;
-    		while ((token = parser.nextToken()) != null) {
-    			if(token.equals(JsonToken.FIELD_NAME)) {
-    				String currentName = parser.getCurrentName();
-    				DataType dataType = allowedKeys.get(currentName);
-    				if(dataType != null) {
-    					JsonToken valueToken = parser.nextToken();
-    					switch (dataType) {
-    					case STRING:
-    						if(!valueToken.equals(JsonToken.VALUE_STRING)) {
-    							wrongDatatypes.put(currentName, "String expected");
-    						}
-    						break;
-    					case ARRAY:
-    						if(!valueToken.equals(JsonToken.START_ARRAY) && !valueToken.equals(JsonToken.END_ARRAY)) {
-    							wrongDatatypes.put(currentName, "Array expected");
-    						}
-    						break;
-    					case OBJECT:
-    						if(!valueToken.equals(JsonToken.START_OBJECT) && !valueToken.equals(JsonToken.END_OBJECT)) {
-    							wrongDatatypes.put(currentName, "Object expected");
-    						}
-    						break;						
-    					}
-    				}
-    			}
-    		}
-    		return wrongDatatypes.isEmpty();
+	/**
+	 * @return false if the value does not have the expected type, its members
+	 *         are not checked then
+	 */
+	private boolean checkDatatype(final String key, final Element element, final XContentParser.Token valueToken) {
+		switch (element.getType()) {
+		case STRING:
+			if (valueToken != XContentParser.Token.VALUE_STRING) {
+				wrongDatatypes.put(key, "String expected");
+				return false;
+			}
+			break;
+		case ARRAY:
+			if (valueToken != XContentParser.Token.START_ARRAY) {
+				wrongDatatypes.put(key, "Array expected");
+				return false;
+			}
+			break;
+		case OBJECT:
+			if (valueToken != XContentParser.Token.START_OBJECT) {
+				wrongDatatypes.put(key, "Object expected");
+				return false;
+			}
+			break;
 		}
+		return true;
 	}
 
 	public XContentBuilder errorsAsXContent() {
@@ -204,6 +211,13 @@ public abstract class AbstractConfigurationValidator {
 					builder.field( entry.getKey(), entry.getValue());
 				}
 				break;
+			case BODY_TOO_LARGE:
+			case TOO_MANY_KEYS:
+			case TOO_DEEPLY_NESTED:
+				builder.field("status", "error");
+				builder.field("reason", errorType.getMessage());
+				builder.field("limit", exceededLimit);
+				break;
 			default:
 				builder.field("status", "error");
 				builder.field("reason", errorType.getMessage());
@@ -220,6 +234,10 @@ public abstract class AbstractConfigurationValidator {
 		return settingsBuilder;
 	}
 
+	public ErrorType getErrorType() {
+		return errorType;
+	}
+
 	private void addErrorMessage(final XContentBuilder builder, final String message, final Set<String> keys)
 			throws IOException {
 		if (!keys.isEmpty()) {
@@ -229,18 +247,118 @@ public abstract class AbstractConfigurationValidator {
 		}
 	}
 
-	private Settings.Builder toSettingsBuilder(final BytesReference ref) {
+	/**
+	 * Streams over the content once. Top level keys are collected, datatypes
+	 * are checked against the schema and the content is flattened into settings the same way
+	 * {@link Settings.Builder#loadFromSource(String, XContentType)} does.
+	 * Limits are checked for every token, so an oversized body is rejected
+	 * before it has been materialized.
+	 */
+	private Settings.Builder parse(final BytesReference ref, final Set<String> requested, final ValidationLimits limits) {
+		final Settings.Builder builder = Settings.builder();
 		if (ref == null || ref.length() == 0) {
-			return Settings.builder();
+			return builder;
 		}
-		
-		try {
-		    return Settings.builder().loadFromSource(ref.utf8ToString(), XContentType.JSON);
+
+		try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY, ref, XContentType.JSON)) {
+			if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+				throw new ElasticsearchParseException("malformed, expected settings to start with 'object', instead was [{}]", parser.currentToken());
+			}
+			XContentParser.Token token;
+			while ((token = parser.nextToken()) == XContentParser.Token.FIELD_NAME) {
+				countKey(limits);
+				final String key = parser.currentName();
+				parser.nextToken();
+				// like Settings#names(), keys without any value (empty objects) are not requested
+				if (flatten(parser, key, schema.element(key), builder, 2, limits)) {
+					final int dot = key.indexOf('.');
+					requested.add(dot < 0 ? key : key.substring(0, dot));
+				}
+			}
+			if (token != XContentParser.Token.END_OBJECT || parser.nextToken() != null) {
+				throw new ElasticsearchParseException("malformed, expected end of settings but encountered additional content");
+			}
+			return builder;
+		} catch (final LimitExceededException e) {
+			throw e;
 		} catch (final Exception e) {
 			throw ExceptionsHelper.convertToElastic(e);
 		}
 	}
 
+	/**
+	 * Flatten the current value and check it against the element, if any
+	 * 
+	 * @param depth the level of the current value, the body itself is on level 1
+	 * @return true if at least one setting has been written
+	 */
+	private boolean flatten(final XContentParser parser, final String key, Element element, final Settings.Builder builder,
+			final int depth, final ValidationLimits limits) throws IOException {
+		if (element != null && !checkDatatype(key, element, parser.currentToken())) {
+			element = null;
+		}
+
+		switch (parser.currentToken()) {
+		case START_OBJECT:
+			checkDepth(depth, limits);
+			boolean written = false;
+			while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+				countKey(limits);
+				final String name = parser.currentName();
+				parser.nextToken();
+				written |= flatten(parser, key + "." + name, element == null ? null : element.member(name), builder, depth + 1, limits);
+			}
+			return written;
+		case START_ARRAY:
+			checkDepth(depth, limits);
+			final List<String> values = new ArrayList<>();
+			while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+				if (!parser.currentToken().isValue()) {
+					throw new ElasticsearchParseException("only value lists are allowed in serialized settings");
+				}
+				values.add(parser.text());
+			}
+			builder.putList(key, values);
+			return true;
+		case VALUE_NULL:
+			builder.putNull(key);
+			return true;
+		default:
+			builder.put(key, parser.text());
+			return true;
+		}
+	}
+
+	private void countKey(final ValidationLimits limits) {
+		if (++keys > limits.getMaxKeys()) {
+			throw new LimitExceededException(ErrorType.TOO_MANY_KEYS, limits.getMaxKeys());
+		}
+	}
+
+	private static void checkDepth(final int depth, final ValidationLimits limits) {
+		if (depth > limits.getMaxDepth()) {
+			throw new LimitExceededException(ErrorType.TOO_DEEPLY_NESTED, limits.getMaxDepth());
+		}
+	}
+
+	/**
+	 * Aborts parsing, not an {@link ElasticsearchException} so it is not
+	 * reported as unparseable body
+	 */
+	private static class LimitExceededException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ErrorType errorType;
+		private final long limit;
+
+		LimitExceededException(final ErrorType errorType, final long limit) {
+			super(errorType.getMessage(), null, false, false);
+			this.errorType = errorType;
+			this.limit = limit;
+		}
+	}
+
 	public static enum DataType {
 		STRING,
 		ARRAY,
@@ -254,7 +372,10 @@ public abstract class AbstractConfigurationValidator {
 		BODY_NOT_PARSEABLE("Could not parse content of request."),
 		PAYLOAD_NOT_ALLOWED("Request body not allowed for this action."),
 		PAYLOAD_MANDATORY("Request body required for this action."),
-		SG_NOT_INITIALIZED("Search Guard index not initialized (SG11)");
+		SG_NOT_INITIALIZED("Search Guard index not initialized (SG11)"),
+		BODY_TOO_LARGE("Request body too large."),
+		TOO_MANY_KEYS("Request body contains too many keys."),
+		TOO_DEEPLY_NESTED("Request body is nested too deeply.");
 		
 		private String message;
 
@@ -265,5 +386,13 @@ public abstract class AbstractConfigurationValidator {
 		public String getMessage() {
 			return message;
 		}
+
+		/**
+		 * @return true if the body has been rejected because of its size, not
+		 *         because of its content
+		 */
+		public boolean isLimitExceeded() {
+			return this == BODY_TOO_LARGE || this == TOO_MANY_KEYS || this == TOO_DEEPLY_NESTED;
+		}
 	}
 }
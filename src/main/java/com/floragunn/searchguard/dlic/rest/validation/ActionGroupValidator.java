@@ -17,13 +17,18 @@ package com.floragunn.searchguard.dlic.rest.validation;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.rest.RestRequest.Method;
 
+import com.floragunn.searchguard.dlic.rest.validation.ValidationSchema.Element;
+
 public class ActionGroupValidator extends AbstractConfigurationValidator {
 
+	private static final ValidationSchema SCHEMA = ValidationSchema.builder()
+			.payloadMandatory()
+			.allow("permissions", Element.array())
+			.mandatory("permissions")
+			.build();
+
 	public ActionGroupValidator(Method method, BytesReference ref) {
-		super(method, ref);
-		this.payloadMandatory = true;
-		allowedKeys.put("permissions", DataType.ARRAY);
-		mandatoryKeys.add("permissions");
+		super(method, ref, SCHEMA);
 	}
 
 }
@@ -17,14 +17,19 @@ package com.floragunn.searchguard.dlic.rest.validation;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.rest.RestRequest.Method;
 
+import com.floragunn.searchguard.dlic.rest.validation.ValidationSchema.Element;
+
 public class InternalUsersValidator extends AbstractConfigurationValidator {
 
+	private static final ValidationSchema SCHEMA = ValidationSchema.builder()
+			.payloadMandatory()
+			.allow("hash", Element.string())
+			.allow("password", Element.string())
+			.allow("roles", Element.array())
+			.build();
+
 	public InternalUsersValidator(final Method method, BytesReference ref) {
-		super(method, ref);
-		this.payloadMandatory = true;
-		allowedKeys.put("hash", DataType.STRING);
-		allowedKeys.put("password", DataType.STRING);
-		allowedKeys.put("roles", DataType.ARRAY);
+		super(method, ref, SCHEMA);
 	}
 
 }
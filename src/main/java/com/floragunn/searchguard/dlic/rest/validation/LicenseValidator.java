@@ -16,12 +16,17 @@ package com.floragunn.searchguard.dlic.rest.validation;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.rest.RestRequest.Method;
 
+import com.floragunn.searchguard.dlic.rest.validation.ValidationSchema.Element;
+
 public class LicenseValidator extends AbstractConfigurationValidator {
 
+	private static final ValidationSchema SCHEMA = ValidationSchema.builder()
+			.payloadMandatory()
+			.allow("sg_license", Element.string())
+			.build();
+
 	public LicenseValidator(Method method, BytesReference ref) {
-		super(method, ref);
-		this.payloadMandatory = true;
-		allowedKeys.put("sg_license", DataType.STRING);
+		super(method, ref, SCHEMA);
 	}
 
 }
@@ -20,7 +20,7 @@ import org.elasticsearch.rest.RestRequest.Method;
 public class NoOpValidator extends AbstractConfigurationValidator {
 
 	public NoOpValidator(Method method, BytesReference ref) {
-		super(method, ref);
+		super(method, ref, ValidationSchema.EMPTY);
 	}
 
 }
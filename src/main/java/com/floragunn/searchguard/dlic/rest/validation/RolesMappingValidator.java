@@ -17,17 +17,19 @@ package com.floragunn.searchguard.dlic.rest.validation;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.rest.RestRequest.Method;
 
+import com.floragunn.searchguard.dlic.rest.validation.ValidationSchema.Element;
+
 public class RolesMappingValidator extends AbstractConfigurationValidator {
 
-	public RolesMappingValidator(final Method method, final BytesReference ref) {
-		super(method, ref);
-		this.payloadMandatory = true;
-		allowedKeys.put("backendroles", DataType.ARRAY);
-		allowedKeys.put("hosts", DataType.ARRAY);
-		allowedKeys.put("users", DataType.ARRAY);
+	private static final ValidationSchema SCHEMA = ValidationSchema.builder()
+			.payloadMandatory()
+			.allow("backendroles", Element.array())
+			.allow("hosts", Element.array())
+			.allow("users", Element.array())
+			.mandatoryOr("backendroles", "hosts", "users")
+			.build();
 
-		mandatoryOrKeys.add("backendroles");
-		mandatoryOrKeys.add("hosts");
-		mandatoryOrKeys.add("users");
+	public RolesMappingValidator(final Method method, final BytesReference ref) {
+		super(method, ref, SCHEMA);
 	}
 }
@@ -17,16 +17,23 @@ package com.floragunn.searchguard.dlic.rest.validation;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.rest.RestRequest.Method;
 
+import com.floragunn.searchguard.dlic.rest.validation.ValidationSchema.Element;
+
 public class RolesValidator extends AbstractConfigurationValidator {
 
+	private static final Element INDEX_PERMISSIONS = Element.object(Element.array())
+			.with("_dls_", Element.string())
+			.with("_fls_", Element.array());
+
+	private static final ValidationSchema SCHEMA = ValidationSchema.builder()
+			.payloadMandatory()
+			.allow("indices", Element.object(INDEX_PERMISSIONS))
+			.allow("cluster", Element.array())
+			.allow("tenants", Element.object(Element.string()))
+			.mandatoryOr("indices", "cluster")
+			.build();
+
 	public RolesValidator(final Method method, final BytesReference ref) {
-		super(method, ref);
-		this.payloadMandatory = true;
-		allowedKeys.put("indices", DataType.OBJECT);
-		allowedKeys.put("cluster", DataType.ARRAY);
-		allowedKeys.put("tenants", DataType.OBJECT);
-		
-		mandatoryOrKeys.add("indices");
-		mandatoryOrKeys.add("cluster");
+		super(method, ref, SCHEMA);
 	}
 }
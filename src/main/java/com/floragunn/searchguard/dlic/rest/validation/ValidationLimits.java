@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.dlic.rest.validation;
+
+import java.util.Locale;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+/**
+ * Upper bounds for request bodies, enforced before and while a body is
+ * parsed. Limits are configured for all endpoints and can be overridden per
+ * endpoint, e.g. <code>searchguard.restapi.validation.roles.max_body_size</code>.
+ */
+public final class ValidationLimits {
+
+	public final static String SEARCHGUARD_RESTAPI_VALIDATION_PREFIX = "searchguard.restapi.validation.";
+	public final static String MAX_BODY_SIZE = "max_body_size";
+	public final static String MAX_KEYS = "max_keys";
+	public final static String MAX_DEPTH = "max_depth";
+
+	/** No limits at all */
+	public static final ValidationLimits NONE = new ValidationLimits(Long.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+	/** Far above any sane single resource */
+	public static final ValidationLimits DEFAULT = new ValidationLimits(new ByteSizeValue(1, ByteSizeUnit.MB).getBytes(), 10000, 10);
+
+	private final long maxBodySize;
+	private final int maxKeys;
+	private final int maxDepth;
+
+	public ValidationLimits(final long maxBodySize, final int maxKeys, final int maxDepth) {
+		this.maxBodySize = maxBodySize;
+		this.maxKeys = maxKeys;
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * Endpoint specific settings take precedence over the settings for all
+	 * endpoints, which take precedence over the given defaults.
+	 */
+	public static ValidationLimits fromSettings(final Settings settings, final String endpoint, final ValidationLimits defaults) {
+		final String global = SEARCHGUARD_RESTAPI_VALIDATION_PREFIX;
+		final String specific = SEARCHGUARD_RESTAPI_VALIDATION_PREFIX + endpoint.toLowerCase(Locale.ROOT) + ".";
+
+		final ByteSizeValue globalBodySize = settings.getAsBytesSize(global + MAX_BODY_SIZE, new ByteSizeValue(defaults.maxBodySize));
+		final int globalKeys = settings.getAsInt(global + MAX_KEYS, defaults.maxKeys);
+		final int globalDepth = settings.getAsInt(global + MAX_DEPTH, defaults.maxDepth);
+
+		return new ValidationLimits(
+				settings.getAsBytesSize(specific + MAX_BODY_SIZE, globalBodySize).getBytes(),
+				settings.getAsInt(specific + MAX_KEYS, globalKeys),
+				settings.getAsInt(specific + MAX_DEPTH, globalDepth));
+	}
+
+	public long getMaxBodySize() {
+		return maxBodySize;
+	}
+
+	/**
+	 * @return the maximum number of keys on all levels of the body
+	 */
+	public int getMaxKeys() {
+		return maxKeys;
+	}
+
+	/**
+	 * @return the maximum nesting of objects and arrays, the body itself is
+	 *         on level 1
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	@Override
+	public String toString() {
+		return "ValidationLimits [maxBodySize=" + maxBodySize + ", maxKeys=" + maxKeys + ", maxDepth=" + maxDepth + "]";
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2018 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.dlic.rest.validation;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.floragunn.searchguard.dlic.rest.validation.AbstractConfigurationValidator.DataType;
+
+/**
+ * Immutable description of a valid request body. A schema is built once per
+ * resource type and shared by all validators of that type, a validator only
+ * holds the errors found in its request.
+ */
+public final class ValidationSchema {
+
+	/** Accepts any body, but no keys */
+	public static final ValidationSchema EMPTY = builder().build();
+
+	private final Map<String, Element> allowedKeys;
+	private final Set<String> mandatoryKeys;
+	private final Set<String> mandatoryOrKeys;
+	private final boolean payloadMandatory;
+	private final boolean payloadAllowed;
+
+	private ValidationSchema(final Builder builder) {
+		this.allowedKeys = Collections.unmodifiableMap(new HashMap<>(builder.allowedKeys));
+		this.mandatoryKeys = Collections.unmodifiableSet(new HashSet<>(builder.mandatoryKeys));
+		this.mandatoryOrKeys = Collections.unmodifiableSet(new HashSet<>(builder.mandatoryOrKeys));
+		this.payloadMandatory = builder.payloadMandatory;
+		this.payloadAllowed = builder.payloadAllowed;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @return the expected structure of the value of a top level key, null if
+	 *         the key is not allowed
+	 */
+	Element element(final String key) {
+		return allowedKeys.get(key);
+	}
+
+	boolean isAllowed(final String key) {
+		return allowedKeys.containsKey(key);
+	}
+
+	Set<String> getMandatoryKeys() {
+		return mandatoryKeys;
+	}
+
+	Set<String> getMandatoryOrKeys() {
+		return mandatoryOrKeys;
+	}
+
+	boolean isPayloadMandatory() {
+		return payloadMandatory;
+	}
+
+	boolean isPayloadAllowed() {
+		return payloadAllowed;
+	}
+
+	public static final class Builder {
+
+		private final Map<String, Element> allowedKeys = new HashMap<>();
+		private final Set<String> mandatoryKeys = new HashSet<>();
+		private final Set<String> mandatoryOrKeys = new HashSet<>();
+		private boolean payloadMandatory = false;
+		private boolean payloadAllowed = true;
+
+		private Builder() {
+		}
+
+		public Builder allow(final String key, final Element element) {
+			allowedKeys.put(key, element);
+			return this;
+		}
+
+		public Builder mandatory(final String key) {
+			mandatoryKeys.add(key);
+			return this;
+		}
+
+		/**
+		 * At least one of the given keys must be present
+		 */
+		public Builder mandatoryOr(final String... keys) {
+			mandatoryOrKeys.addAll(Arrays.asList(keys));
+			return this;
+		}
+
+		public Builder payloadMandatory() {
+			this.payloadMandatory = true;
+			return this;
+		}
+
+		public Builder payloadNotAllowed() {
+			this.payloadAllowed = false;
+			return this;
+		}
+
+		public ValidationSchema build() {
+			return new ValidationSchema(this);
+		}
+	}
+
+	/**
+	 * Expected type of a value and, for objects, of its members. Members
+	 * without a named element are checked against the element for all
+	 * members, if there is one.
+	 */
+	public static final class Element {
+
+		private final DataType type;
+		private final Map<String, Element> namedMembers;
+		private final Element members;
+
+		private Element(final DataType type, final Map<String, Element> namedMembers, final Element members) {
+			this.type = type;
+			this.namedMembers = namedMembers;
+			this.members = members;
+		}
+
+		public static Element string() {
+			return new Element(DataType.STRING, Collections.emptyMap(), null);
+		}
+
+		public static Element array() {
+			return new Element(DataType.ARRAY, Collections.emptyMap(), null);
+		}
+
+		/**
+		 * An object with arbitrary members
+		 */
+		public static Element object() {
+			return new Element(DataType.OBJECT, Collections.emptyMap(), null);
+		}
+
+		/**
+		 * An object whose members all have the given structure
+		 */
+		public static Element object(final Element members) {
+			return new Element(DataType.OBJECT, Collections.emptyMap(), members);
+		}
+
+		/**
+		 * @return a copy of this object element, with a different structure for
+		 *         the member of the given name
+		 */
+		public Element with(final String name, final Element member) {
+			if (type != DataType.OBJECT) {
+				throw new IllegalStateException("Only objects have members");
+			}
+			final Map<String, Element> named = new HashMap<>(namedMembers);
+			named.put(name, member);
+			return new Element(type, Collections.unmodifiableMap(named), members);
+		}
+
+		DataType getType() {
+			return type;
+		}
+
+		/**
+		 * @return the expected structure of the given member, null if it is not
+		 *         checked
+		 */
+		Element member(final String name) {
+			final Element named = namedMembers.get(name);
+			return named != null ? named : members;
+		}
+	}
+}
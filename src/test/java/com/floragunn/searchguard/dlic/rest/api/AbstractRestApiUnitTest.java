@@ -72,6 +72,10 @@ public abstract class AbstractRestApiUnitTest extends SingleClusterTest {
 	}
 	
 	protected final void setupWithRestRoles() throws Exception {
+		setupWithRestRoles(Settings.EMPTY);
+	}
+
+	protected final void setupWithRestRoles(Settings additionalSettings) throws Exception {
 		Settings.Builder builder = Settings.builder();
 
 		builder.put("searchguard.ssl.http.enabled", true)
@@ -93,6 +97,8 @@ public abstract class AbstractRestApiUnitTest extends SingleClusterTest {
 		builder.put("searchguard.restapi.endpoints_disabled.sg_role_klingons.ROLESMAPPING.1", "DELETE");
 		
 		builder.put("searchguard.restapi.endpoints_disabled.sg_role_vulcans.SGCONFIG.0", "*");
+
+		builder.put(additionalSettings);
 		
 		setup(Settings.EMPTY, new DynamicSgConfig(), builder.build(), init);
 		rh = restHelper();
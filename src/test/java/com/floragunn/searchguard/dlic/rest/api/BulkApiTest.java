@@ -0,0 +1,190 @@
+/*
+ * Copyright 2018 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.dlic.rest.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.test.helper.rest.RestHelper.HttpResponse;
+
+public class BulkApiTest extends AbstractRestApiUnitTest {
+
+	@Test
+	public void testBulkApi() throws Exception {
+
+		setup();
+
+		rh.keystore = "kirk-keystore.jks";
+		rh.sendHTTPClientCertificate = true;
+
+		final String bulk = 
+				"{\"create\":{\"type\":\"roles\",\"name\":\"sg_role_bulk\"}}\n"
+				+ "{\"cluster\":[\"CLUSTER_MONITOR\"]}\n"
+				+ "{\"create\":{\"type\":\"rolesmapping\",\"name\":\"sg_role_bulk\"}}\n"
+				+ "{\"users\":[\"picard\"]}\n"
+				+ "{\"create\":{\"type\":\"actiongroups\",\"name\":\"BULK_GROUP\"}}\n"
+				+ "{\"permissions\":[\"indices:data/read*\"]}\n"
+				+ "{\"create\":{\"type\":\"internalusers\",\"name\":\"bulkuser\"}}\n"
+				+ "{\"password\":\"bulkuser\"}\n"
+				+ "{\"update\":{\"type\":\"roles\",\"name\":\"idonotexist\"}}\n"
+				+ "{\"cluster\":[\"CLUSTER_MONITOR\"]}\n"
+				+ "{\"create\":{\"type\":\"roles\",\"name\":\"sg_role_invalid\"}}\n"
+				+ "{\"unknownkey\":\"value\"}\n"
+				+ "{\"delete\":{\"type\":\"roles\",\"name\":\"sg_transport_client\"}}\n"
+				+ "{\"delete\":{\"type\":\"unknown\",\"name\":\"something\"}}\n";
+
+		HttpResponse response = rh.executePostRequest("/_searchguard/api/_bulk", bulk, new Header[0]);
+		Assert.assertEquals(response.getBody(), HttpStatus.SC_OK, response.getStatusCode());
+		Settings settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals("true", settings.get("errors"));
+		Assert.assertEquals("CREATED", settings.get("items.0.create.status"));
+		Assert.assertEquals("CREATED", settings.get("items.1.create.status"));
+		Assert.assertEquals("CREATED", settings.get("items.2.create.status"));
+		Assert.assertEquals("CREATED", settings.get("items.3.create.status"));
+		Assert.assertEquals("NOT_FOUND", settings.get("items.4.update.status"));
+		Assert.assertEquals("BAD_REQUEST", settings.get("items.5.create.status"));
+		Assert.assertEquals("FORBIDDEN", settings.get("items.6.delete.status"));
+		Assert.assertEquals("BAD_REQUEST", settings.get("items.7.delete.status"));
+
+		// all created resources are available
+		response = rh.executeGetRequest("/_searchguard/api/roles/sg_role_bulk", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		response = rh.executeGetRequest("/_searchguard/api/rolesmapping/sg_role_bulk", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		response = rh.executeGetRequest("/_searchguard/api/actiongroups/BULK_GROUP", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		response = rh.executeGetRequest("/_searchguard/api/internalusers/bulkuser", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		response = rh.executeGetRequest("/_searchguard/api/roles/sg_role_invalid", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_NOT_FOUND, response.getStatusCode());
+
+		// new user can authenticate
+		rh.sendHTTPClientCertificate = false;
+		response = rh.executeGetRequest("_searchguard/authinfo", encodeBasicHeader("bulkuser", "bulkuser"));
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		rh.sendHTTPClientCertificate = true;
+
+		// create again, already exists, update and delete succeed
+		final String bulk2 = 
+				"{\"create\":{\"type\":\"roles\",\"name\":\"sg_role_bulk\"}}\n"
+				+ "{\"cluster\":[\"CLUSTER_MONITOR\"]}\n"
+				+ "{\"update\":{\"type\":\"actiongroups\",\"name\":\"BULK_GROUP\"}}\n"
+				+ "{\"permissions\":[\"indices:data/write*\"]}\n"
+				+ "{\"delete\":{\"type\":\"rolesmapping\",\"name\":\"sg_role_bulk\"}}\n";
+
+		response = rh.executePostRequest("/_searchguard/api/_bulk", bulk2, new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals("CONFLICT", settings.get("items.0.create.status"));
+		Assert.assertEquals("OK", settings.get("items.1.update.status"));
+		Assert.assertEquals("OK", settings.get("items.2.delete.status"));
+
+		response = rh.executeGetRequest("/_searchguard/api/rolesmapping/sg_role_bulk", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_NOT_FOUND, response.getStatusCode());
+
+		// malformed requests
+		response = rh.executePostRequest("/_searchguard/api/_bulk", "{\"create\":{\"type\":\"roles\",\"name\":\"x\"}}\n", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusCode());
+		response = rh.executePostRequest("/_searchguard/api/_bulk", "{\"index\":{\"type\":\"roles\",\"name\":\"x\"}}\n", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusCode());
+		response = rh.executePostRequest("/_searchguard/api/_bulk", "", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusCode());
+
+		// no certificate, no access
+		rh.sendHTTPClientCertificate = false;
+		response = rh.executePostRequest("/_searchguard/api/_bulk", bulk2, encodeBasicHeader("worf", "worf"));
+		Assert.assertEquals(HttpStatus.SC_FORBIDDEN, response.getStatusCode());
+	}
+
+	@Test
+	public void testBulkApiRoleBasedAccess() throws Exception {
+
+		setupWithRestRoles();
+
+		rh.sendHTTPClientCertificate = false;
+
+		// worf may create roles, but not delete role mappings
+		final String bulk =
+				"{\"create\":{\"type\":\"roles\",\"name\":\"sg_role_worf\"}}\n"
+				+ "{\"cluster\":[\"CLUSTER_MONITOR\"]}\n"
+				+ "{\"delete\":{\"type\":\"rolesmapping\",\"name\":\"sg_role_starfleet\"}}\n";
+
+		HttpResponse response = rh.executePostRequest("/_searchguard/api/_bulk", bulk, encodeBasicHeader("worf", "worf"));
+		Assert.assertEquals(response.getBody(), HttpStatus.SC_OK, response.getStatusCode());
+		Settings settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals("true", settings.get("errors"));
+		Assert.assertEquals("CREATED", settings.get("items.0.create.status"));
+		Assert.assertEquals("FORBIDDEN", settings.get("items.1.delete.status"));
+
+		rh.sendHTTPClientCertificate = true;
+		rh.keystore = "kirk-keystore.jks";
+		response = rh.executeGetRequest("/_searchguard/api/rolesmapping/sg_role_starfleet", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+	}
+
+	@Test
+	public void testBulkApiConcurrentWithSingleWrites() throws Exception {
+
+		setup();
+
+		rh.keystore = "kirk-keystore.jks";
+		rh.sendHTTPClientCertificate = true;
+
+		final StringBuilder bulk = new StringBuilder();
+		for (int i = 0; i < 10; i++) {
+			bulk.append("{\"create\":{\"type\":\"roles\",\"name\":\"sg_role_bulk" + i + "\"}}\n");
+			bulk.append("{\"cluster\":[\"CLUSTER_MONITOR\"]}\n");
+		}
+
+		// single writes and the bulk write to the same config type must not lose any change
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		final List<Future<HttpResponse>> responses = new ArrayList<>();
+		try {
+			for (int i = 0; i < 10; i++) {
+				final String role = "sg_role_single" + i;
+				responses.add(executor.submit(() -> rh.executePutRequest("/_searchguard/api/roles/" + role,
+						"{\"cluster\":[\"CLUSTER_MONITOR\"]}", new Header[0])));
+				if (i == 4) {
+					responses.add(executor.submit(() -> rh.executePostRequest("/_searchguard/api/_bulk", bulk.toString(), new Header[0])));
+				}
+			}
+			for (final Future<HttpResponse> response : responses) {
+				final HttpResponse httpResponse = response.get();
+				Assert.assertTrue(httpResponse.getBody(), httpResponse.getStatusCode() == HttpStatus.SC_CREATED
+						|| httpResponse.getStatusCode() == HttpStatus.SC_OK);
+				Assert.assertFalse(httpResponse.getBody(), httpResponse.getBody().contains("\"errors\":true"));
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		for (int i = 0; i < 10; i++) {
+			HttpResponse response = rh.executeGetRequest("/_searchguard/api/roles/sg_role_bulk" + i, new Header[0]);
+			Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+			response = rh.executeGetRequest("/_searchguard/api/roles/sg_role_single" + i, new Header[0]);
+			Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		}
+	}
+}
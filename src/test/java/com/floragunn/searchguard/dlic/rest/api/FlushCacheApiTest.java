@@ -57,5 +57,19 @@ public class FlushCacheApiTest extends AbstractRestApiUnitTest {
 		settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
 		Assert.assertEquals(settings.get("message"), "Cache flushed successfully.");
 
+		// DELETE selected types
+		response = rh.executeDeleteRequest("/_searchguard/api/cache/roles,rolesmapping", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals(settings.get("message"), "Cache flushed successfully for [roles, rolesmapping].");
+
+		response = rh.executeDeleteRequest("/_searchguard/api/cache/roles,unknown", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusCode());
+
+		// DELETE REST API caches only
+		response = rh.executeDeleteRequest("/_searchguard/api/cache?reload=false", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals(settings.get("message"), "REST API caches flushed successfully.");
 	}
 }
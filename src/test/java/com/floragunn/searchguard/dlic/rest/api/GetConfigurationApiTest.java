@@ -14,7 +14,9 @@
 
 package com.floragunn.searchguard.dlic.rest.api;
 
+import org.apache.http.Header;
 import org.apache.http.HttpStatus;
+import org.apache.http.message.BasicHeader;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.junit.Assert;
@@ -70,4 +72,49 @@ public class GetConfigurationApiTest extends AbstractRestApiUnitTest {
 		Assert.assertEquals(settings.getAsList("ALL").get(0), "indices:*");
 	}
 
+	@Test
+	public void testGetConfigurationNotModified() throws Exception {
+
+		setup();
+		rh.keystore = "kirk-keystore.jks";
+		rh.sendHTTPClientCertificate = true;
+
+		HttpResponse response = rh.executeGetRequest("_searchguard/api/roles/");
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		final String etag = getETag(response);
+		Assert.assertNotNull(etag);
+
+		// unchanged, not modified
+		response = rh.executeGetRequest("_searchguard/api/roles/", new BasicHeader("If-None-Match", etag));
+		Assert.assertEquals(HttpStatus.SC_NOT_MODIFIED, response.getStatusCode());
+		Assert.assertEquals(etag, getETag(response));
+
+		// same content, same ETag
+		response = rh.executeGetRequest("_searchguard/api/configuration/roles", new BasicHeader("If-None-Match", etag));
+		Assert.assertEquals(HttpStatus.SC_NOT_MODIFIED, response.getStatusCode());
+
+		// other ETag
+		response = rh.executeGetRequest("_searchguard/api/roles/", new BasicHeader("If-None-Match", "\"other\""));
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+
+		// changed configuration, new ETag
+		response = rh.executeDeleteRequest("/_searchguard/api/roles/sg_role_starfleet", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		response = rh.executeGetRequest("_searchguard/api/roles/", new BasicHeader("If-None-Match", etag));
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		Assert.assertNotEquals(etag, getETag(response));
+		Settings settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertTrue(settings.getAsList("sg_role_starfleet.cluster").isEmpty());
+		Assert.assertFalse(settings.getAsList("sg_all_access.cluster").isEmpty());
+	}
+
+	private static String getETag(final HttpResponse response) {
+		for (final Header header : response.getHeaders()) {
+			if (header.getName().equalsIgnoreCase("ETag")) {
+				return header.getValue();
+			}
+		}
+		return null;
+	}
+
 }
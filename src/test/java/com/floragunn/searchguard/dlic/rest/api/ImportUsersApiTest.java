@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.dlic.rest.api;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.test.helper.rest.RestHelper.HttpResponse;
+
+public class ImportUsersApiTest extends AbstractRestApiUnitTest {
+
+	@Test
+	public void testImportUsers() throws Exception {
+
+		setup();
+
+		rh.keystore = "kirk-keystore.jks";
+		rh.sendHTTPClientCertificate = true;
+
+		// nothing imported yet
+		HttpResponse response = rh.executeGetRequest("/_searchguard/api/_import/internalusers", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_NOT_FOUND, response.getStatusCode());
+
+		final StringBuilder users = new StringBuilder();
+		for (int i = 0; i < 10; i++) {
+			users.append("{\"importuser" + i + "\":{\"password\":\"importuser" + i + "\",\"roles\":[\"starfleet\"]}}\n");
+		}
+		// pre-hashed password
+		users.append("{\"hashuser\":{\"hash\":\"$2a$12$VcCDgh2NDk07JGN0rjGbM.Ad41qVR/YFJcgHp0UGns5JDymv..TOG\"}}\n");
+		// invalid user
+		users.append("{\"invaliduser\":{\"password\":\"invalid\",\"unknownkey\":\"value\"}}\n");
+		// update of an existing user
+		users.append("{\"test\":{\"password\":\"test\",\"roles\":[\"starfleet\"]}}\n");
+
+		response = rh.executePostRequest("/_searchguard/api/_import/internalusers", users.toString(), new Header[0]);
+		Assert.assertEquals(response.getBody(), HttpStatus.SC_OK, response.getStatusCode());
+		Settings settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals("done", settings.get("state"));
+		Assert.assertEquals("13", settings.get("total"));
+		Assert.assertEquals("11", settings.get("hashed"));
+		Assert.assertEquals("11", settings.get("created"));
+		Assert.assertEquals("1", settings.get("updated"));
+		Assert.assertEquals("1", settings.get("failed"));
+		Assert.assertEquals("invaliduser", settings.get("errors.0.name"));
+		Assert.assertEquals("12", settings.get("errors.0.line"));
+		Assert.assertEquals("BAD_REQUEST", settings.get("errors.0.status"));
+
+		// progress of the last import
+		response = rh.executeGetRequest("/_searchguard/api/_import/internalusers", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals("done", settings.get("state"));
+		Assert.assertEquals("11", settings.get("created"));
+
+		response = rh.executeGetRequest("/_searchguard/api/internalusers/invaliduser", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_NOT_FOUND, response.getStatusCode());
+
+		// a user may be called like the endpoint
+		response = rh.executePutRequest("/_searchguard/api/internalusers/_import", "{\"password\":\"import\"}", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_CREATED, response.getStatusCode());
+		response = rh.executeGetRequest("/_searchguard/api/internalusers/_import", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+
+		// imported users can authenticate
+		rh.sendHTTPClientCertificate = false;
+		response = rh.executeGetRequest("_searchguard/authinfo", encodeBasicHeader("importuser7", "importuser7"));
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		response = rh.executeGetRequest("_searchguard/authinfo", encodeBasicHeader("hashuser", "admin"));
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		rh.sendHTTPClientCertificate = true;
+
+		// malformed requests
+		response = rh.executePostRequest("/_searchguard/api/_import/internalusers", "{\"user\":\"nouser\"}\n", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusCode());
+		response = rh.executePostRequest("/_searchguard/api/_import/internalusers", "", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusCode());
+
+		// no certificate, no access
+		rh.sendHTTPClientCertificate = false;
+		response = rh.executePostRequest("/_searchguard/api/_import/internalusers", users.toString(), encodeBasicHeader("worf", "worf"));
+		Assert.assertEquals(HttpStatus.SC_FORBIDDEN, response.getStatusCode());
+	}
+}
@@ -14,6 +14,7 @@
 
 package com.floragunn.searchguard.dlic.rest.api;
 
+import org.apache.http.Header;
 import org.apache.http.HttpStatus;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentType;
@@ -268,4 +269,63 @@ public class RoleBasedAccessTest extends AbstractRestApiUnitTest {
 		
 
 	}
+
+	@Test
+	public void testAdminCertCheckedFirst() throws Exception {
+
+		setupWithRestRoles(Settings.builder().put(RestApiPrivilegesEvaluator.SEARCHGUARD_RESTAPI_CHECK_ADMIN_CERT_FIRST, true).build());
+
+		// admin certificate, granted without evaluating roles
+		rh.sendHTTPClientCertificate = true;
+		HttpResponse response = rh.executeGetRequest("/_searchguard/api/roles/sg_role_starfleet", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+
+		response = rh.executeGetRequest("_searchguard/api/license", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+
+		// no certificate, roles are still evaluated
+		rh.sendHTTPClientCertificate = false;
+		response = rh.executeGetRequest("/_searchguard/api/roles/sg_role_starfleet", encodeBasicHeader("worf", "worf"));
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+
+		// license disabled for worf
+		response = rh.executeGetRequest("_searchguard/api/license", encodeBasicHeader("worf", "worf"));
+		Assert.assertEquals(HttpStatus.SC_FORBIDDEN, response.getStatusCode());
+		Assert.assertTrue(response.getBody().contains("does not have any access to endpoint LICENSE"));
+	}
+
+	@Test
+	public void testPatchRequiresPutAndDelete() throws Exception {
+
+		// worf may not delete roles in addition to the defaults
+		setupWithRestRoles(Settings.builder().put("searchguard.restapi.endpoints_disabled.sg_role_klingons.ROLES.0", "DELETE").build());
+
+		rh.sendHTTPClientCertificate = false;
+
+		// PUT and DELETE of role mappings are disabled for worf, so is PATCH
+		HttpResponse response = rh.executePatchRequest("/_searchguard/api/rolesmapping/sg_role_starfleet",
+				"{\"users\": [\"worf\"]}", encodeBasicHeader("worf", "worf"));
+		Assert.assertEquals(HttpStatus.SC_FORBIDDEN, response.getStatusCode());
+		response = rh.executePatchRequest("/_searchguard/api/rolesmapping/",
+				"[{\"op\": \"remove\", \"path\": \"/sg_role_starfleet\"}]", encodeBasicHeader("worf", "worf"));
+		Assert.assertEquals(HttpStatus.SC_FORBIDDEN, response.getStatusCode());
+		response = rh.executePatchRequest("/_searchguard/api/rolesmapping/", "{\"sg_role_starfleet\": null}", encodeBasicHeader("worf", "worf"));
+		Assert.assertEquals(HttpStatus.SC_FORBIDDEN, response.getStatusCode());
+
+		// roles may be patched, but not removed
+		response = rh.executePatchRequest("/_searchguard/api/roles/",
+				"[{\"op\": \"add\", \"path\": \"/sg_role_worf\", \"value\": {\"cluster\": [\"CLUSTER_MONITOR\"]}}]",
+				encodeBasicHeader("worf", "worf"));
+		Assert.assertEquals(response.getBody(), HttpStatus.SC_OK, response.getStatusCode());
+		response = rh.executePatchRequest("/_searchguard/api/roles/", "{\"sg_role_worf\": null}", encodeBasicHeader("worf", "worf"));
+		Assert.assertEquals(HttpStatus.SC_FORBIDDEN, response.getStatusCode());
+
+		rh.sendHTTPClientCertificate = true;
+		rh.keystore = "kirk-keystore.jks";
+		response = rh.executeGetRequest("/_searchguard/api/rolesmapping/sg_role_starfleet", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		Assert.assertFalse(response.getBody().contains("worf"));
+		response = rh.executeGetRequest("/_searchguard/api/roles/sg_role_worf", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+	}
 }
@@ -14,12 +14,14 @@
 
 package com.floragunn.searchguard.dlic.rest.api;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.stream.Collectors;
 
 import org.apache.http.Header;
 import org.apache.http.HttpStatus;
+import org.apache.http.message.BasicHeader;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.junit.Assert;
@@ -245,4 +247,315 @@ public class RolesApiTest extends AbstractRestApiUnitTest {
 		Assert.assertEquals(settings.get("status"), "error");
 		Assert.assertEquals(settings.get("reason"), ErrorType.INVALID_CONFIGURATION.getMessage());
 	}
+
+	@Test
+	public void testRolesApiNestedDatatypes() throws Exception {
+
+		setup();
+
+		rh.keystore = "kirk-keystore.jks";
+		rh.sendHTTPClientCertificate = true;
+
+		// index permissions must be arrays
+		HttpResponse response = rh.executePutRequest("/_searchguard/api/roles/sg_role_nested",
+				"{\"indices\": {\"sf\": {\"*\": \"CRUD\"}}}", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusCode());
+		Settings settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals(AbstractConfigurationValidator.ErrorType.WRONG_DATATYPE.getMessage(), settings.get("reason"));
+		Assert.assertEquals("Array expected", settings.get("indices.sf.*"));
+
+		// DLS query must be a string
+		response = rh.executePutRequest("/_searchguard/api/roles/sg_role_nested",
+				"{\"indices\": {\"sf\": {\"*\": [\"CRUD\"], \"_dls_\": [\"query\"]}}}", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusCode());
+		settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals("String expected", settings.get("indices.sf._dls_"));
+
+		// tenant permissions must be strings
+		response = rh.executePutRequest("/_searchguard/api/roles/sg_role_nested",
+				"{\"cluster\": [\"*\"], \"tenants\": {\"tenant1\": [\"RW\"]}}", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusCode());
+		settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals("String expected", settings.get("tenants.tenant1"));
+
+		// valid nested structure
+		response = rh.executePutRequest("/_searchguard/api/roles/sg_role_nested",
+				"{\"indices\": {\"sf\": {\"*\": [\"CRUD\"], \"_dls_\": \"{}\", \"_fls_\": [\"a\"]}}, \"tenants\": {\"tenant1\": \"RW\"}}", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_CREATED, response.getStatusCode());
+	}
+
+	@Test
+	public void testRolesApiConditionalWrites() throws Exception {
+
+		setup();
+
+		rh.keystore = "kirk-keystore.jks";
+		rh.sendHTTPClientCertificate = true;
+
+		// outdated version, must be rejected
+		HttpResponse response = rh.executePutRequest("/_searchguard/api/roles/sg_role_starfleet",
+				FileHelper.loadFile("roles_starfleet.json"), new BasicHeader("If-Match", "\"999999\""));
+		Assert.assertEquals(HttpStatus.SC_CONFLICT, response.getStatusCode());
+		Settings settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals("CONFLICT", settings.get("status"));
+		Assert.assertNotNull(settings.get("current_version"));
+
+		// retry with the current version
+		response = rh.executePutRequest("/_searchguard/api/roles/sg_role_starfleet",
+				FileHelper.loadFile("roles_starfleet.json"), new BasicHeader("If-Match", "\"" + settings.get("current_version") + "\""));
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+
+		// version is no longer current
+		response = rh.executeDeleteRequest("/_searchguard/api/roles/sg_role_starfleet",
+				new BasicHeader("If-Match", settings.get("current_version")));
+		Assert.assertEquals(HttpStatus.SC_CONFLICT, response.getStatusCode());
+
+		// not a version at all
+		response = rh.executePutRequest("/_searchguard/api/roles/sg_role_starfleet",
+				FileHelper.loadFile("roles_starfleet.json"), new BasicHeader("If-Match", "nonsense"));
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusCode());
+
+		// no condition at all
+		response = rh.executePutRequest("/_searchguard/api/roles/sg_role_starfleet",
+				FileHelper.loadFile("roles_starfleet.json"), new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+	}
+
+	@Test
+	public void testRolesApiPatch() throws Exception {
+
+		setup();
+
+		rh.keystore = "kirk-keystore.jks";
+		rh.sendHTTPClientCertificate = true;
+
+		// JSON Patch, add cluster permission to a single role
+		HttpResponse response = rh.executePatchRequest("/_searchguard/api/roles/sg_role_starfleet",
+				"[{\"op\": \"add\", \"path\": \"/cluster\", \"value\": [\"CLUSTER_MONITOR\"]}]", new Header[0]);
+		Assert.assertEquals(response.getBody(), HttpStatus.SC_OK, response.getStatusCode());
+		response = rh.executeGetRequest("/_searchguard/api/roles/sg_role_starfleet", new Header[0]);
+		Settings settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals("CLUSTER_MONITOR", settings.getAsList("sg_role_starfleet.cluster").get(0));
+
+		// JSON Merge Patch, remove it again
+		response = rh.executePatchRequest("/_searchguard/api/roles/sg_role_starfleet", "{\"cluster\": null}", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		response = rh.executeGetRequest("/_searchguard/api/roles/sg_role_starfleet", new Header[0]);
+		settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertTrue(settings.getAsList("sg_role_starfleet.cluster").isEmpty());
+
+		// failed test operation, nothing is written
+		response = rh.executePatchRequest("/_searchguard/api/roles/sg_role_starfleet",
+				"[{\"op\": \"test\", \"path\": \"/cluster\", \"value\": [\"CLUSTER_ALL\"]}]", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_UNPROCESSABLE_ENTITY, response.getStatusCode());
+
+		// result is not a valid role
+		response = rh.executePatchRequest("/_searchguard/api/roles/sg_role_starfleet",
+				"[{\"op\": \"add\", \"path\": \"/unknownkey\", \"value\": \"value\"}]", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusCode());
+
+		// malformed patch
+		response = rh.executePatchRequest("/_searchguard/api/roles/sg_role_starfleet", "[{\"op\": \"fly\", \"path\": \"/\"}]", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusCode());
+
+		// role does not exist
+		response = rh.executePatchRequest("/_searchguard/api/roles/idonotexist", "{\"cluster\": null}", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_NOT_FOUND, response.getStatusCode());
+
+		// read only role
+		response = rh.executePatchRequest("/_searchguard/api/roles/sg_transport_client",
+				"{\"cluster\": [\"CLUSTER_MONITOR\"]}", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_FORBIDDEN, response.getStatusCode());
+
+		// collection level, add one role and remove another in one write
+		response = rh.executePatchRequest("/_searchguard/api/roles/",
+				"[{\"op\": \"add\", \"path\": \"/sg_role_patched\", \"value\": {\"cluster\": [\"CLUSTER_MONITOR\"]}}, "
+				+ "{\"op\": \"remove\", \"path\": \"/sg_role_klingons2\"}]", new Header[0]);
+		Assert.assertEquals(response.getBody(), HttpStatus.SC_OK, response.getStatusCode());
+		response = rh.executeGetRequest("/_searchguard/api/roles/sg_role_patched", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		response = rh.executeGetRequest("/_searchguard/api/roles/sg_role_klingons2", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_NOT_FOUND, response.getStatusCode());
+
+		// collection level, read only role cannot be removed
+		response = rh.executePatchRequest("/_searchguard/api/roles/",
+				"[{\"op\": \"remove\", \"path\": \"/sg_transport_client\"}]", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_FORBIDDEN, response.getStatusCode());
+	}
+
+	@Test
+	public void testRolesApiPagination() throws Exception {
+
+		setup();
+
+		rh.keystore = "kirk-keystore.jks";
+		rh.sendHTTPClientCertificate = true;
+
+		// first page, sorted by name
+		HttpResponse response = rh.executeGetRequest("/_searchguard/api/roles/?from=0&size=2", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		Settings settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals(2, settings.names().size());
+		Assert.assertTrue(settings.names().contains("sg_admin"));
+		Assert.assertTrue(settings.names().contains("sg_all_access"));
+		Assert.assertEquals("18", getHeader(response, "X-Total-Count"));
+
+		// descending
+		response = rh.executeGetRequest("/_searchguard/api/roles/?size=1&sort=desc", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals(1, settings.names().size());
+		Assert.assertTrue(settings.names().contains("sg_zdummy_all"));
+
+		// prefix
+		response = rh.executeGetRequest("/_searchguard/api/roles/?filter=sg_role_klingons", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals(2, settings.names().size());
+		Assert.assertEquals("READ", settings.getAsList("sg_role_klingons1.indices.klingonempire.ships").get(0));
+		Assert.assertEquals("2", getHeader(response, "X-Total-Count"));
+
+		// wildcard and offset
+		response = rh.executeGetRequest("/_searchguard/api/roles/?filter=*starfleet*&from=1", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals(1, settings.names().size());
+		Assert.assertTrue(settings.names().contains("sg_role_starfleet_captains"));
+
+		// beyond the last page
+		response = rh.executeGetRequest("/_searchguard/api/roles/?from=100", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertTrue(settings.isEmpty());
+
+		// invalid parameters
+		response = rh.executeGetRequest("/_searchguard/api/roles/?from=-1", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusCode());
+		response = rh.executeGetRequest("/_searchguard/api/roles/?size=abc", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusCode());
+		response = rh.executeGetRequest("/_searchguard/api/roles/?sort=random", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusCode());
+	}
+
+	private static String getHeader(final HttpResponse response, final String name) {
+		for (final Header header : response.getHeaders()) {
+			if (header.getName().equalsIgnoreCase(name)) {
+				return header.getValue();
+			}
+		}
+		return null;
+	}
+
+	@Test
+	public void testRolesApiLimits() throws Exception {
+
+		setupWithRestRoles(Settings.builder()
+				.put("searchguard.restapi.validation.roles.max_body_size", "1kb")
+				.put("searchguard.restapi.validation.roles.max_keys", 20)
+				.put("searchguard.restapi.validation.roles.max_depth", 4)
+				.build());
+
+		rh.keystore = "kirk-keystore.jks";
+		rh.sendHTTPClientCertificate = true;
+
+		// body too large, rejected before validation
+		final StringBuilder large = new StringBuilder("{\"cluster\": [");
+		for (int i = 0; i < 100; i++) {
+			large.append(i == 0 ? "" : ",").append("\"indices:data/read/search\"");
+		}
+		large.append("]}");
+		HttpResponse response = rh.executePutRequest("/_searchguard/api/roles/sg_role_limits", large.toString(), new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_REQUEST_TOO_LONG, response.getStatusCode());
+
+		// too many keys
+		final StringBuilder keys = new StringBuilder("{\"indices\": {");
+		for (int i = 0; i < 25; i++) {
+			keys.append(i == 0 ? "" : ",").append("\"i" + i + "\": {\"*\": [\"READ\"]}");
+		}
+		keys.append("}}");
+		response = rh.executePutRequest("/_searchguard/api/roles/sg_role_limits", keys.toString(), new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_REQUEST_TOO_LONG, response.getStatusCode());
+		Settings settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals(ErrorType.TOO_MANY_KEYS.getMessage(), settings.get("reason"));
+		Assert.assertEquals("20", settings.get("limit"));
+
+		// nested too deeply
+		response = rh.executePutRequest("/_searchguard/api/roles/sg_role_limits",
+				"{\"indices\": {\"sf\": {\"a\": {\"b\": {\"c\": [\"READ\"]}}}}}", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_REQUEST_TOO_LONG, response.getStatusCode());
+		settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals(ErrorType.TOO_DEEPLY_NESTED.getMessage(), settings.get("reason"));
+
+		// within limits
+		response = rh.executePutRequest("/_searchguard/api/roles/sg_role_limits",
+				"{\"cluster\": [\"CLUSTER_MONITOR\"], \"indices\": {\"sf\": {\"*\": [\"READ\"]}}}", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_CREATED, response.getStatusCode());
+
+		// other endpoints keep the default limits
+		response = rh.executePutRequest("/_searchguard/api/actiongroups/LIMITS_GROUP", large.toString().replace("cluster", "permissions"), new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_CREATED, response.getStatusCode());
+	}
+
+	@Test
+	public void testRolesApiPropagation() throws Exception {
+
+		setup();
+
+		rh.keystore = "kirk-keystore.jks";
+		rh.sendHTTPClientCertificate = true;
+
+		// by default every node has to reload before the write is acknowledged
+		HttpResponse response = rh.executePutRequest("/_searchguard/api/roles/sg_role_propagation",
+				"{\"cluster\": [\"CLUSTER_MONITOR\"]}", new Header[0]);
+		Assert.assertEquals(response.getBody(), HttpStatus.SC_CREATED, response.getStatusCode());
+		Settings settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals("all", settings.get("propagation.ack"));
+		Assert.assertEquals(settings.get("propagation.total"), settings.get("propagation.reloaded"));
+		Assert.assertEquals("0", settings.get("propagation.failed"));
+		Assert.assertEquals("0", settings.get("propagation.pending"));
+		Assert.assertTrue(settings.getAsSettings("propagation.nodes").names().size() > 0);
+		for (final String nodeId : settings.getAsSettings("propagation.nodes").names()) {
+			Assert.assertEquals("reloaded", settings.get("propagation.nodes." + nodeId + ".state"));
+			Assert.assertNotNull(settings.get("propagation.nodes." + nodeId + ".took_millis"));
+		}
+		Assert.assertEquals(Arrays.asList("sg_role_propagation"), settings.getAsList("propagation.written_changes.roles.upserted"));
+		Assert.assertTrue(settings.getAsList("propagation.written_changes.roles.deleted").isEmpty());
+
+		// unchanged role, neither written nor reloaded
+		response = rh.executePutRequest("/_searchguard/api/roles/sg_role_propagation",
+				"{\"cluster\": [\"CLUSTER_MONITOR\"]}", new Header[0]);
+		Assert.assertEquals(response.getBody(), HttpStatus.SC_OK, response.getStatusCode());
+		settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertNull(settings.get("propagation.ack"));
+
+		response = rh.executeDeleteRequest("/_searchguard/api/roles/sg_role_propagation", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals(Arrays.asList("sg_role_propagation"), settings.getAsList("propagation.written_changes.roles.deleted"));
+
+		// nothing written, nothing reloaded
+		response = rh.executeDeleteRequest("/_searchguard/api/roles/sg_role_does_not_exist", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_NOT_FOUND, response.getStatusCode());
+		settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertNull(settings.get("propagation.ack"));
+	}
+
+	@Test
+	public void testRolesApiQuorumPropagation() throws Exception {
+
+		setupWithRestRoles(Settings.builder().put("searchguard.restapi.config_update.ack", "quorum")
+				.put("searchguard.restapi.config_update.node_timeout", "10s").build());
+
+		rh.keystore = "kirk-keystore.jks";
+		rh.sendHTTPClientCertificate = true;
+
+		HttpResponse response = rh.executePutRequest("/_searchguard/api/roles/sg_role_propagation",
+				"{\"cluster\": [\"CLUSTER_MONITOR\"]}", new Header[0]);
+		Assert.assertEquals(response.getBody(), HttpStatus.SC_CREATED, response.getStatusCode());
+		Settings settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals("quorum", settings.get("propagation.ack"));
+		Assert.assertEquals("0", settings.get("propagation.failed"));
+		final int total = settings.getAsInt("propagation.total", 0);
+		Assert.assertTrue(settings.getAsInt("propagation.reloaded", 0) > total / 2);
+	}
 }
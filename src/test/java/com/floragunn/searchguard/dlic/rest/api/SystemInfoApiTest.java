@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+package com.floragunn.searchguard.dlic.rest.api;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.test.helper.rest.RestHelper.HttpResponse;
+
+public class SystemInfoApiTest extends AbstractRestApiUnitTest {
+
+	@Test
+	public void testSystemInfo() throws Exception {
+
+		setup();
+
+		rh.keystore = "kirk-keystore.jks";
+		rh.sendHTTPClientCertificate = true;
+
+		HttpResponse response = rh.executeGetRequest("/_searchguard/api/systeminfo", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		Settings settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals(RestApiThreadPool.THREAD_POOL_NAME, settings.get("thread_pool.name"));
+		Assert.assertEquals("0", settings.get("thread_pool.rejected"));
+
+		// no certificate, no access
+		rh.sendHTTPClientCertificate = false;
+		response = rh.executeGetRequest("/_searchguard/api/systeminfo", encodeBasicHeader("worf", "worf"));
+		Assert.assertEquals(HttpStatus.SC_FORBIDDEN, response.getStatusCode());
+	}
+
+	@Test
+	public void testPasswordHashingInfo() throws Exception {
+
+		setup();
+
+		rh.keystore = "kirk-keystore.jks";
+		rh.sendHTTPClientCertificate = true;
+
+		addUserWithPassword("hashuser", "hashuser", HttpStatus.SC_CREATED);
+
+		HttpResponse response = rh.executeGetRequest("/_searchguard/api/systeminfo", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		Settings settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals(PasswordHasher.THREAD_POOL_NAME, settings.get("password_hashing.name"));
+		Assert.assertEquals("1", settings.get("password_hashing.hashed"));
+		Assert.assertEquals("0", settings.get("password_hashing.rejected"));
+
+		// hashed user can authenticate
+		rh.sendHTTPClientCertificate = false;
+		response = rh.executeGetRequest("_searchguard/authinfo", encodeBasicHeader("hashuser", "hashuser"));
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+	}
+
+	@Test
+	public void testPasswordHashingCost() throws Exception {
+
+		setupWithRestRoles(Settings.builder().put(PasswordHasher.SEARCHGUARD_RESTAPI_PASSWORD_HASHING_COST, 5).build());
+
+		rh.keystore = "kirk-keystore.jks";
+		rh.sendHTTPClientCertificate = true;
+
+		addUserWithPassword("cheapuser", "cheapuser", HttpStatus.SC_CREATED);
+
+		HttpResponse response = rh.executeGetRequest("/_searchguard/api/systeminfo", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		Settings settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals("5", settings.get("password_hashing.cost"));
+		Assert.assertEquals("false", settings.get("password_hashing.calibrated"));
+		// the users of the test configuration are hashed with cost 12
+		Assert.assertNotEquals("0", settings.get("password_hashing.outdated_hashes"));
+
+		response = rh.executeGetRequest("/_searchguard/api/internalusers/cheapuser", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+		settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertTrue(settings.get("cheapuser.hash").matches("\\$2[aby]\\$05\\$.*"));
+
+		rh.sendHTTPClientCertificate = false;
+		response = rh.executeGetRequest("_searchguard/authinfo", encodeBasicHeader("cheapuser", "cheapuser"));
+		Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+	}
+}